@@ -0,0 +1,99 @@
+package com.bytestorm.isp;
+
+import java.text.ParseException;
+import java.text.ParsePosition;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.format.ResolverStyle;
+import java.time.temporal.TemporalAccessor;
+import java.time.temporal.TemporalQueries;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Thread safe date parser with memo of already parsed strings. Reports contains only handful of distinct dates, so
+ * each of them is parsed once (using immutable java.time formatter) and later served from the memo. Parsing rules
+ * mimic {@link java.text.SimpleDateFormat} (trailing text is ignored, fields missing in pattern default to
+ * 1970-01-01 00:00 in parser time zone).
+ */
+public final class CachedDateParser {
+
+    public CachedDateParser(String pattern, boolean lenient, Locale locale, TimeZone tz) {
+        this(pattern, lenient, locale, tz, DEFAULT_CACHE_SIZE);
+    }
+
+    /**
+     * @param pattern SimpleDateFormat compatible date pattern
+     * @param lenient whether date interpretation is lenient
+     * @param locale locale used to parse the date (default format locale if null)
+     * @param tz time zone used to parse the date (default time zone if null)
+     * @param cacheSize maximum number of memoized entries
+     */
+    public CachedDateParser(String pattern, boolean lenient, Locale locale, TimeZone tz, int cacheSize) {
+        if (null == pattern) {
+            throw new NullPointerException("pattern should not be null");
+        }
+        DateTimeFormatterBuilder builder = new DateTimeFormatterBuilder();
+        if (lenient) {
+            builder.parseCaseInsensitive().parseLenient();
+        }
+        this.formatter = builder
+                .appendPattern(pattern)
+                .toFormatter(null != locale ? locale : Locale.getDefault(Locale.Category.FORMAT))
+                .withResolverStyle(lenient ? ResolverStyle.LENIENT : ResolverStyle.SMART);
+        this.zone = null != tz ? tz.toZoneId() : ZoneId.systemDefault();
+        this.cacheSize = cacheSize;
+    }
+
+    public Date parse(String str) throws ParseException {
+        return new Date(parseMillis(str));
+    }
+
+    public long parseMillis(String str) throws ParseException {
+        final Long cached = cache.get(str);
+        if (null != cached) {
+            return cached;
+        }
+        final long millis = doParse(str);
+        if (cache.size() < cacheSize) {
+            cache.putIfAbsent(str, millis);
+        }
+        return millis;
+    }
+
+    private long doParse(String str) throws ParseException {
+        final ParsePosition pos = new ParsePosition(0);
+        final TemporalAccessor parsed;
+        try {
+            parsed = formatter.parse(str, pos);
+        } catch (DateTimeParseException ex) {
+            throw (ParseException) new ParseException("Unparseable date: \"" + str + "\"", ex.getErrorIndex()).initCause(ex);
+        }
+        LocalDate date = parsed.query(TemporalQueries.localDate());
+        LocalTime time = parsed.query(TemporalQueries.localTime());
+        if (null == date && null == time) {
+            throw new ParseException("Unparseable date: \"" + str + "\"", pos.getIndex());
+        }
+        if (null == date) {
+            date = EPOCH_DATE;
+        }
+        if (null == time) {
+            time = LocalTime.MIDNIGHT;
+        }
+        return date.atTime(time).atZone(zone).toInstant().toEpochMilli();
+    }
+
+    private final DateTimeFormatter formatter;
+    private final ZoneId zone;
+    private final int cacheSize;
+    private final ConcurrentHashMap<String, Long> cache = new ConcurrentHashMap<>();
+
+    private static final int DEFAULT_CACHE_SIZE = 4096;
+    private static final LocalDate EPOCH_DATE = LocalDate.of(1970, 1, 1);
+}
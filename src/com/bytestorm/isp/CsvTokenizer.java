@@ -0,0 +1,421 @@
+package com.bytestorm.isp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Quote aware CSV tokenizer working directly on UTF-8 encoded bytes. Fields are not materialized, only their
+ * boundaries are recorded, so callers decode (or parse as numbers) just the fields they need. Tokenizing rules are
+ * same as in Super CSV standard preference (quote '"', delimiter ',', empty column is null, blank lines skipped).
+ * Data is read either from stream or from memory mapped file (mapped in windows, so files larger than 2GB are
+ * supported too). Mapped data is still bulk copied to tokenizer buffer (fields are exposed as byte array ranges, see
+ * {@link #getBuffer()}), so mapping saves read system calls only, not the copy.
+ */
+public class CsvTokenizer implements Closeable {
+
+    public CsvTokenizer(InputStream in) {
+        this.in = in;
+        this.channel = null;
+    }
+
+    /**
+     * Creates tokenizer reading memory mapped file data.
+     * @param channel channel opened for reading (closed with tokenizer)
+     */
+    public CsvTokenizer(FileChannel channel) {
+        this.in = null;
+        this.channel = channel;
+    }
+
+    /**
+     * Reads next record.
+     * @return false if end of stream is reached
+     */
+    public boolean nextRecord() throws IOException {
+        fieldsCount = 0;
+        // skip blank lines (and second character of CRLF sequence)
+        for (;;) {
+            if (pos >= limit) {
+                recordStart = pos;
+                if (!fill()) {
+                    return false;
+                }
+            }
+            final byte b = buf[pos];
+            if (CR != b && LF != b) {
+                break;
+            }
+            pos++;
+        }
+        recordStart = pos;
+        int fieldBegin = pos;
+        boolean quoted = false;
+        boolean inQuotes = false;
+        for (;;) {
+            if (pos >= limit) {
+                // fill may move record to the beginning of the buffer even if no more data is read
+                final int fieldOffset = fieldBegin - recordStart;
+                final boolean filled = fill();
+                fieldBegin = recordStart + fieldOffset;
+                if (!filled) {
+                    if (inQuotes) {
+                        throw new IOException("Unexpected end of file in quoted field of row " + (rowNumber + 1));
+                    }
+                    addField(fieldBegin, pos, quoted);
+                    break;
+                }
+                continue;
+            }
+            final byte b = buf[pos];
+            if (inQuotes) {
+                if (QUOTE == b) {
+                    inQuotes = false;
+                }
+            } else if (DELIMITER == b) {
+                addField(fieldBegin, pos, quoted);
+                fieldBegin = pos + 1;
+                quoted = false;
+            } else if (QUOTE == b) {
+                inQuotes = true;
+                quoted = true;
+            } else if (CR == b || LF == b) {
+                addField(fieldBegin, pos, quoted);
+                break;
+            }
+            pos++;
+        }
+        recordEnd = pos;
+        rowNumber++;
+        return true;
+    }
+
+    /**
+     * Number of records read so far (including header).
+     * @return the row number
+     */
+    public int getRowNumber() {
+        return rowNumber;
+    }
+
+    public int getFieldsCount() {
+        return fieldsCount;
+    }
+
+    /**
+     * Checks if field is empty (Super CSV would return null for such column).
+     * @param field field index
+     * @return true if field is empty
+     */
+    public boolean isNull(int field) {
+        if (fieldQuoted[field]) {
+            return 0 == unescape(field, null);
+        }
+        return fieldEnd[field] == fieldStart[field];
+    }
+
+    /**
+     * Decodes field as UTF-8 string.
+     * @param field field index
+     * @return field value or null if field is empty
+     */
+    public String getString(int field) {
+        final int start = fieldStart[field];
+        final int len = fieldEnd[field] - start;
+        if (fieldQuoted[field]) {
+            if (scratch.length < len) {
+                scratch = new byte[len];
+            }
+            final int unescapedLen = unescape(field, scratch);
+            return unescapedLen > 0 ? new String(scratch, 0, unescapedLen, StandardCharsets.UTF_8) : null;
+        }
+        return len > 0 ? new String(buf, start, len, StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Parses field as decimal number (',' is treated as grouping separator and ignored).
+     * @param field field index
+     * @return parsed value or null if field is empty
+     */
+    public BigDecimal getDecimal(int field) throws NumberFormatException {
+        if (fieldQuoted[field]) {
+            final String str = getString(field);
+            return null != str ? new BigDecimal(str.replace(",", "")) : null;
+        }
+        final int start = fieldStart[field];
+        final int end = fieldEnd[field];
+        if (start == end) {
+            return null;
+        }
+        int i = start;
+        boolean negative = false;
+        if (MINUS == buf[i] || PLUS == buf[i]) {
+            negative = MINUS == buf[i];
+            i++;
+        }
+        long unscaled = 0;
+        int digits = 0;
+        int scale = -1;
+        for (; i < end; i++) {
+            final byte b = buf[i];
+            if (b >= '0' && b <= '9') {
+                unscaled = unscaled * 10 + (b - '0');
+                if (++digits > MAX_LONG_DIGITS) {
+                    return slowDecimal(field);
+                }
+                if (scale >= 0) {
+                    scale++;
+                }
+            } else if (DOT == b && scale < 0) {
+                scale = 0;
+            } else {
+                return slowDecimal(field);
+            }
+        }
+        if (0 == digits) {
+            return slowDecimal(field);
+        }
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, scale < 0 ? 0 : scale);
+    }
+
+    /**
+     * Parses field as integer number.
+     * @param field field index
+     * @param defaultValue value returned for empty field
+     * @return parsed value
+     */
+    public long getLong(int field, long defaultValue) throws NumberFormatException {
+        if (fieldQuoted[field]) {
+            final String str = getString(field);
+            return null != str ? Long.parseLong(str) : defaultValue;
+        }
+        final int start = fieldStart[field];
+        final int end = fieldEnd[field];
+        if (start == end) {
+            return defaultValue;
+        }
+        int i = start;
+        boolean negative = false;
+        if (MINUS == buf[i] || PLUS == buf[i]) {
+            negative = MINUS == buf[i];
+            i++;
+        }
+        if (i == end || end - i > MAX_LONG_DIGITS) {
+            return Long.parseLong(new String(buf, start, end - start, StandardCharsets.US_ASCII));
+        }
+        long value = 0;
+        for (; i < end; i++) {
+            final byte b = buf[i];
+            if (b < '0' || b > '9') {
+                throw new NumberFormatException("'" + new String(buf, start, end - start, StandardCharsets.UTF_8)
+                        + "' could not be parsed as a number");
+            }
+            value = value * 10 + (b - '0');
+        }
+        return negative ? -value : value;
+    }
+
+    /**
+     * Compares raw (not unescaped) field bytes with given bytes.
+     * @param field field index
+     * @param bytes bytes to compare with
+     * @param len number of bytes to compare
+     * @return true if field content is same
+     */
+    public boolean rawEquals(int field, byte[] bytes, int len) {
+        final int start = fieldStart[field];
+        if (fieldEnd[field] - start != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (buf[start + i] != bytes[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies raw (not unescaped) field bytes.
+     * @param field field index
+     * @param out output buffer (must be large enough) or null to only query length
+     * @return number of bytes in field
+     */
+    public int copyRaw(int field, byte[] out) {
+        final int start = fieldStart[field];
+        final int len = fieldEnd[field] - start;
+        if (null != out) {
+            System.arraycopy(buf, start, out, 0, len);
+        }
+        return len;
+    }
+
+    /**
+     * Checks if field is quoted (raw field bytes contains quotes).
+     * @param field field index
+     * @return true if field is quoted
+     */
+    public boolean isQuoted(int field) {
+        return fieldQuoted[field];
+    }
+
+    /**
+     * Internal buffer with raw record data, valid only until next {@link #nextRecord()} call.
+     * @return the buffer
+     */
+    public byte[] getBuffer() {
+        return buf;
+    }
+
+    /**
+     * Raw field offset in {@link #getBuffer()}.
+     * @param field field index
+     * @return the offset
+     */
+    public int getFieldOffset(int field) {
+        return fieldStart[field];
+    }
+
+    /**
+     * Raw field length in bytes.
+     * @param field field index
+     * @return the length
+     */
+    public int getFieldLength(int field) {
+        return fieldEnd[field] - fieldStart[field];
+    }
+
+    /**
+     * Untokenized record (for diagnostic purposes).
+     * @return the raw record
+     */
+    public String getRawRecord() {
+        return new String(buf, recordStart, recordEnd - recordStart, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public void close() throws IOException {
+        window = null;
+        if (null != in) {
+            in.close();
+        } else {
+            channel.close();
+        }
+    }
+
+    private BigDecimal slowDecimal(int field) {
+        return new BigDecimal(getString(field).replace(",", ""));
+    }
+
+    private void addField(int start, int end, boolean quoted) {
+        if (fieldsCount == fieldStart.length) {
+            fieldStart = Arrays.copyOf(fieldStart, fieldsCount * 2);
+            fieldEnd = Arrays.copyOf(fieldEnd, fieldsCount * 2);
+            fieldQuoted = Arrays.copyOf(fieldQuoted, fieldsCount * 2);
+        }
+        fieldStart[fieldsCount] = start;
+        fieldEnd[fieldsCount] = end;
+        fieldQuoted[fieldsCount] = quoted;
+        fieldsCount++;
+    }
+
+    // removes quotes (quote directly after closing quote is literal one), returns content length, out may be null
+    private int unescape(int field, byte[] out) {
+        int len = 0;
+        boolean inQuotes = false;
+        boolean justClosed = false;
+        for (int i = fieldStart[field], end = fieldEnd[field]; i < end; i++) {
+            final byte b = buf[i];
+            if (QUOTE == b) {
+                if (inQuotes) {
+                    inQuotes = false;
+                    justClosed = true;
+                    continue;
+                }
+                inQuotes = true;
+                if (!justClosed) {
+                    continue;
+                }
+            }
+            justClosed = false;
+            if (null != out) {
+                out[len] = b;
+            }
+            len++;
+        }
+        return len;
+    }
+
+    // moves current record to the beginning of the buffer (growing it if needed) and reads more data
+    private boolean fill() throws IOException {
+        if (eof) {
+            return false;
+        }
+        final int shift = recordStart;
+        if (shift > 0) {
+            System.arraycopy(buf, shift, buf, 0, limit - shift);
+            limit -= shift;
+            pos -= shift;
+            recordStart = 0;
+            for (int i = 0; i < fieldsCount; i++) {
+                fieldStart[i] -= shift;
+                fieldEnd[i] -= shift;
+            }
+        } else if (limit == buf.length) {
+            buf = Arrays.copyOf(buf, buf.length * 2);
+        }
+        final int read = null != in ? in.read(buf, limit, buf.length - limit) : readMapped(buf, limit, buf.length - limit);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    // copies bytes from current mapped window to tokenizer buffer (mapping next one if needed)
+    private int readMapped(byte[] out, int offset, int len) throws IOException {
+        if (null == window || !window.hasRemaining()) {
+            final long size = channel.size();
+            if (windowEnd >= size) {
+                return -1;
+            }
+            final long windowSize = Math.min(WINDOW_SIZE, size - windowEnd);
+            window = channel.map(FileChannel.MapMode.READ_ONLY, windowEnd, windowSize);
+            windowEnd += windowSize;
+        }
+        final int count = Math.min(len, window.remaining());
+        window.get(out, offset, count);
+        return count;
+    }
+
+    private final InputStream in;
+    private final FileChannel channel;
+    private MappedByteBuffer window;
+    private long windowEnd;
+    private byte[] buf = new byte[BUFFER_SIZE];
+    private byte[] scratch = new byte[256];
+    private int pos, limit, recordStart, recordEnd;
+    private boolean eof;
+    private int rowNumber;
+    private int fieldsCount;
+    private int[] fieldStart = new int[32];
+    private int[] fieldEnd = new int[32];
+    private boolean[] fieldQuoted = new boolean[32];
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final long WINDOW_SIZE = 256L * 1024 * 1024;
+    private static final int MAX_LONG_DIGITS = 18;
+    private static final byte QUOTE = '"';
+    private static final byte DELIMITER = ',';
+    private static final byte DOT = '.';
+    private static final byte MINUS = '-';
+    private static final byte PLUS = '+';
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+}
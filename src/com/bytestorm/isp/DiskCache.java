@@ -0,0 +1,168 @@
+package com.bytestorm.isp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Simple on-disk cache of immutable data (e.g. reports of past months). Entries are stored as files named by hash
+ * of the key, so key should identify content (include version, checksum etc.). Total size of entries is limited,
+ * least recently used entries are evicted first (access time is tracked with file modification time). Entries are
+ * written to temporary file and moved in place, so partially written data is never visible.
+ */
+public class DiskCache {
+
+    /**
+     * Creates cache from configuration (see cache.* properties).
+     * @param cfg the configuration
+     * @param name cache name (sub-directory of cache directory)
+     * @return the cache or null if caching is disabled
+     */
+    public static DiskCache open(Configuration cfg, String name) {
+        if (!cfg.getBoolean("cache.enabled", true)) {
+            return null;
+        }
+        final File dir = new File(cfg.getProperty("cache.dir",
+                new File(System.getProperty("user.home"), ".isp-cache").getPath()), name);
+        return new DiskCache(dir, Math.max(1, cfg.getInt("cache.max.size", DEFAULT_MAX_SIZE)) * 1024L * 1024L);
+    }
+
+    /**
+     * @param dir cache directory (created if needed)
+     * @param maxSize maximum size of all entries in bytes
+     */
+    public DiskCache(File dir, long maxSize) {
+        this.dir = dir;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Finds cached entry.
+     * @param key entry key
+     * @return entry file or null if key is not cached
+     */
+    public synchronized File get(String key) {
+        final File file = new File(dir, fileName(key));
+        if (!file.isFile()) {
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    /**
+     * Stores entry (whole stream is read, but not closed).
+     * @param key entry key
+     * @param data entry data
+     * @return entry file
+     */
+    public File put(String key, InputStream data) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Cannot create cache directory " + dir);
+        }
+        final File tmp = File.createTempFile("entry-", TMP_SUFFIX, dir);
+        try {
+            try (OutputStream out = new FileOutputStream(tmp)) {
+                final byte[] buf = new byte[64 * 1024];
+                int count;
+                while ((count = data.read(buf)) > 0) {
+                    out.write(buf, 0, count);
+                }
+            }
+            synchronized (this) {
+                final File file = new File(dir, fileName(key));
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                        StandardCopyOption.ATOMIC_MOVE);
+                evict(file);
+                return file;
+            }
+        } finally {
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Stores short text entry.
+     * @param key entry key
+     * @param value the value
+     */
+    public void putString(String key, String value) throws IOException {
+        put(key, new ByteArrayInputStream(value.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Reads short text entry.
+     * @param key entry key
+     * @return the value or null if key is not cached
+     */
+    public String getString(String key) throws IOException {
+        final File file = get(key);
+        return null != file ? new String(Files.readAllBytes(file.toPath()), StandardCharsets.UTF_8) : null;
+    }
+
+    public synchronized void remove(String key) {
+        new File(dir, fileName(key)).delete();
+    }
+
+    // removes least recently used entries (except given one) until cache fits its limit
+    private void evict(File keep) {
+        final File[] files = dir.listFiles();
+        if (null == files) {
+            return;
+        }
+        long size = 0;
+        for (File file : files) {
+            size += file.length();
+        }
+        if (size <= maxSize) {
+            return;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File o1, File o2) {
+                return Long.compare(o1.lastModified(), o2.lastModified());
+            }
+        });
+        for (int i = 0; i < files.length && size > maxSize; i++) {
+            // entries being written by other threads are skipped
+            if (files[i].equals(keep) || files[i].getName().endsWith(TMP_SUFFIX)) {
+                continue;
+            }
+            final long length = files[i].length();
+            if (files[i].delete()) {
+                Log.v("Evicted cache entry " + files[i].getName());
+                size -= length;
+            }
+        }
+    }
+
+    private static String fileName(String key) {
+        try {
+            final byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getBytes(StandardCharsets.UTF_8));
+            final StringBuilder sb = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                sb.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException ex) {
+            throw new Error("SHA-1 not supported", ex);
+        }
+    }
+
+    private final File dir;
+    private final long maxSize;
+
+    // MB
+    private static final int DEFAULT_MAX_SIZE = 2048;
+    private static final String TMP_SUFFIX = ".tmp";
+}
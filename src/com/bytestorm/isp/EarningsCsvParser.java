@@ -0,0 +1,190 @@
+package com.bytestorm.isp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.Date;
+
+/**
+ * Specialized Play earnings report parser, fills {@link Transaction} fields directly from tokenized CSV bytes
+ * (column layout same as {@link Transaction#MAPPING}). Parser is not thread safe, single instance should be used
+ * per report.
+ */
+public class EarningsCsvParser implements Closeable {
+
+    public EarningsCsvParser(InputStream in) {
+        this(in, null);
+    }
+
+    /**
+     * @param in report data
+     * @param pool pool used to intern low cardinality columns and amounts (may be null)
+     */
+    public EarningsCsvParser(InputStream in, InternPool pool) {
+        this(new CsvTokenizer(in), pool);
+    }
+
+    /**
+     * @param tokenizer tokenizer with report data (closed with parser)
+     * @param pool pool used to intern low cardinality columns and amounts (may be null)
+     */
+    public EarningsCsvParser(CsvTokenizer tokenizer, InternPool pool) {
+        this.tokenizer = tokenizer;
+        this.pool = pool;
+    }
+
+    /**
+     * Skips header row.
+     */
+    public void skipHeader() throws IOException {
+        tokenizer.nextRecord();
+    }
+
+    /**
+     * Reads next valid transaction, rows without transaction type and with zero payout are skipped (tax deduction
+     * reports in some cases contains such rows).
+     * @return transaction or null if end of report is reached
+     * @throws IOException if row is malformed or contains invalid transaction
+     */
+    public Transaction read() throws IOException {
+        while (tokenizer.nextRecord()) {
+            if (COLUMNS_COUNT != tokenizer.getFieldsCount()) {
+                throw invalidRow("expected " + COLUMNS_COUNT + " columns but found " + tokenizer.getFieldsCount());
+            }
+            final Transaction t = new Transaction();
+            try {
+                t.setPayout(requireDecimal(COL_PAYOUT));
+                t.setTransactionType(parseType());
+                if (null == t.getTransactionType()) {
+                    if (BigDecimal.ZERO.compareTo(t.getPayout()) == 0) {
+                        continue;
+                    }
+                    throw invalidRow("transaction don't have associated type and have value");
+                }
+                t.setId(tokenizer.getString(COL_ID));
+                if (null == t.getId() && Transaction.Type.TAX != t.getTransactionType()) {
+                    throw invalidRow("non-tax deduction transaction without id");
+                }
+                t.setDate(parseTransactionDate());
+                t.setTime(parseDate(Transaction.TIME_PARSER, COL_TIME));
+                t.setTaxType(intern(tokenizer.getString(COL_TAX_TYPE)));
+                t.setRefundType(tokenizer.getString(COL_REFUND_TYPE));
+                t.setProductName(intern(tokenizer.getString(COL_PRODUCT_NAME)));
+                t.setApplicationId(intern(tokenizer.getString(COL_APPLICATION_ID)));
+                t.setProductType((int) tokenizer.getLong(COL_PRODUCT_TYPE, 0));
+                t.setSkuId(intern(tokenizer.getString(COL_SKU_ID)));
+                t.setHardware(intern(tokenizer.getString(COL_HARDWARE)));
+                t.setBuyerCountry(intern(tokenizer.getString(COL_BUYER_COUNTRY)));
+                t.setBuyerState(tokenizer.getString(COL_BUYER_STATE));
+                t.setBuyerPostalCode(tokenizer.getString(COL_BUYER_POSTAL_CODE));
+                t.setBuyerCurrency(intern(requireString(COL_BUYER_CURRENCY)));
+                t.setAmount(intern(requireDecimal(COL_AMOUNT)));
+                t.setConversionRate(intern(requireDecimal(COL_CONVERSION_RATE)));
+                t.setMerchantCurrency(intern(requireString(COL_MERCHANT_CURRENCY)));
+            } catch (NumberFormatException ex) {
+                throw invalidRow("cannot parse number (" + ex.getMessage() + ")");
+            }
+            return t;
+        }
+        return null;
+    }
+
+    /**
+     * Number of rows read so far (including header and skipped rows).
+     * @return the row number
+     */
+    public int getRowNumber() {
+        return tokenizer.getRowNumber();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tokenizer.close();
+    }
+
+    private String intern(String value) {
+        return null != pool ? pool.intern(value) : value;
+    }
+
+    private BigDecimal intern(BigDecimal value) {
+        return null != pool ? pool.intern(value) : value;
+    }
+
+    private Transaction.Type parseType() {
+        final String type = tokenizer.getString(COL_TRANSACTION_TYPE);
+        return null != type ? (Transaction.Type) Transaction.Type.MAP.get(type) : null;
+    }
+
+    // rows are grouped by date, so raw bytes of last parsed date are remembered to skip decoding and lookup 
+    private Date parseTransactionDate() throws IOException {
+        if (lastDateLength < 0 || !tokenizer.rawEquals(COL_DATE, lastDate, lastDateLength)) {
+            lastDateMillis = parseDate(Transaction.DATE_PARSER, COL_DATE).getTime();
+            final int len = tokenizer.copyRaw(COL_DATE, null);
+            if (len <= lastDate.length) {
+                lastDateLength = tokenizer.copyRaw(COL_DATE, lastDate);
+            } else {
+                lastDateLength = -1;
+            }
+        }
+        return new Date(lastDateMillis);
+    }
+    
+    private Date parseDate(CachedDateParser parser, int field) throws IOException {
+        final String str = requireString(field);
+        try {
+            return parser.parse(str);
+        } catch (ParseException ex) {
+            throw invalidRow("'" + str + "' could not be parsed as a Date");
+        }
+    }
+
+    private String requireString(int field) throws IOException {
+        final String str = tokenizer.getString(field);
+        if (null == str) {
+            throw invalidRow("missing value in column " + (field + 1));
+        }
+        return str;
+    }
+
+    private BigDecimal requireDecimal(int field) throws IOException {
+        final BigDecimal value = tokenizer.getDecimal(field);
+        if (null == value) {
+            throw invalidRow("missing value in column " + (field + 1));
+        }
+        return value;
+    }
+
+    private IOException invalidRow(String reason) {
+        return new IOException("Invalid row " + tokenizer.getRowNumber() + " - " + reason + "\n" + tokenizer.getRawRecord());
+    }
+
+    private final CsvTokenizer tokenizer;
+    private final InternPool pool;
+    private final byte[] lastDate = new byte[64];
+    private int lastDateLength = -1;
+    private long lastDateMillis;
+
+    // column indexes (see Transaction.MAPPING)
+    private static final int COL_ID = 0;
+    private static final int COL_DATE = 1;
+    private static final int COL_TIME = 2;
+    private static final int COL_TAX_TYPE = 3;
+    private static final int COL_TRANSACTION_TYPE = 4;
+    private static final int COL_REFUND_TYPE = 5;
+    private static final int COL_PRODUCT_NAME = 6;
+    private static final int COL_APPLICATION_ID = 7;
+    private static final int COL_PRODUCT_TYPE = 8;
+    private static final int COL_SKU_ID = 9;
+    private static final int COL_HARDWARE = 10;
+    private static final int COL_BUYER_COUNTRY = 11;
+    private static final int COL_BUYER_STATE = 12;
+    private static final int COL_BUYER_POSTAL_CODE = 13;
+    private static final int COL_BUYER_CURRENCY = 14;
+    private static final int COL_AMOUNT = 15;
+    private static final int COL_CONVERSION_RATE = 16;
+    private static final int COL_MERCHANT_CURRENCY = 17;
+    private static final int COL_PAYOUT = 18;
+    private static final int COLUMNS_COUNT = 19;
+}
@@ -1,33 +1,33 @@
 package com.bytestorm.isp;
 
 import java.io.BufferedReader;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.math.BigDecimal;
-import java.net.URL;
-import java.text.DecimalFormat;
-import java.text.NumberFormat;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.Locale;
-
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.joda.time.DateTime;
 import org.joda.time.DateTimeZone;
 import org.joda.time.Days;
+import org.joda.time.LocalDate;
 import org.joda.time.format.DateTimeFormat;
 import org.joda.time.format.DateTimeFormatter;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-import org.xml.sax.InputSource;
-import org.xml.sax.SAXException;
 
 public class Exchange {
     
@@ -72,115 +72,566 @@ public class Exchange {
     }
 
 
-    @SuppressWarnings("unchecked")
     public Exchange(Date from, Date to) {
+        this(from, to, new NbpHttpSource(null));
+    }
+    
+    /**
+     * @param from first day
+     * @param to last day
+     * @param cache cache for NBP data (published tables never change), may be null
+     */
+    public Exchange(Date from, Date to, DiskCache cache) {
+        this(from, to, new NbpHttpSource(cache));
+    }
+    
+    /**
+     * @param from first day
+     * @param to last day
+     * @param source exchange rates tables source
+     */
+    public Exchange(Date from, Date to, ExchangeRateSource source) {
+        this.source = source;
         this.from = new DateTime(from, DateTimeZone.UTC);
         this.to = new DateTime(to, DateTimeZone.UTC);        
-        this.xchange = new HashMap[Days.daysBetween(this.from, this.to).getDays() + 1];
-        Log.v("Creating exchange with date range " + this.from + " - " + this.to + " (days: " + this.xchange.length + ")");
-        try {
-            this.xmlParser = DocumentBuilderFactory.newInstance().newDocumentBuilder();
-        } catch(Exception ex) {
-            throw new RuntimeException("Cannot initialize XML parser", ex);
+        this.firstDay = (int) Math.floorDiv(this.from.getMillis(), MILLIS_PER_DAY);
+        this.daysCount = Days.daysBetween(this.from, this.to).getDays() + 1;
+        Log.v("Creating exchange with date range " + this.from + " - " + this.to + " (days: " + daysCount + ")");
+    }
+    
+    public void download() throws IOException, ParseException {
+        download(true, !skipTablesB, null);
+        downloaded = true;
+    }
+    
+    /**
+     * Downloads B tables of given currencies which are not quoted in downloaded tables (see 
+     * {@link #setSkipTablesB(boolean)}), nothing is fetched if all of them are quoted.
+     * @param currencies required currencies codes
+     */
+    public void downloadMissing(Set<String> currencies) throws IOException, ParseException {
+        final HashSet<String> missing = new HashSet<>();
+        for (String currency : currencies) {
+            if (!isQuoted(currency)) {
+                missing.add(currency.toUpperCase(Locale.US));
+            }
+        }
+        if (missing.isEmpty()) {
+            Log.v("All required currencies are quoted in A tables, skipping B tables");
+            return;
+        }
+        Log.v("Downloading B tables of currencies not quoted in A tables " + missing);
+        download(false, true, missing);
+        tablesBCurrencies.addAll(missing);
+    }
+    
+    /**
+     * Extends downloaded exchange date range to given days, only tables of days out of current range are downloaded
+     * (same tables and currencies as already downloaded ones) and quotes of downloaded days are kept.
+     * @param from first day
+     * @param to last day
+     */
+    public void download(Date from, Date to) throws IOException, ParseException {
+        final int first = (int) Math.floorDiv(from.getTime(), MILLIS_PER_DAY);
+        final int last = (int) Math.floorDiv(to.getTime(), MILLIS_PER_DAY);
+        if (first < firstDay) {
+            merge(downloadGap(first, firstDay - 1), true);
+        }
+        if (last >= firstDay + daysCount) {
+            merge(downloadGap(firstDay + daysCount, last), false);
+        }
+    }
+    
+    // days out of range are downloaded as separate exchange
+    private Exchange downloadGap(int first, int last) throws IOException, ParseException {
+        final Exchange gap = new Exchange(new Date(first * MILLIS_PER_DAY), new Date(last * MILLIS_PER_DAY), source);
+        gap.currencies = currencies;
+        gap.concurrency = concurrency;
+        gap.skipTablesB = skipTablesB;
+        gap.download();
+        if (!tablesBCurrencies.isEmpty()) {
+            gap.downloadMissing(tablesBCurrencies);
         }
-        this.decimalParser = (DecimalFormat) NumberFormat.getInstance(new Locale("pl", "PL"));
-        this.decimalParser.setParseBigDecimal(true);        
+        return gap;
     }
     
-    public void download() throws IOException, SAXException, ParseException {
-        final URL url = new URL("http://www.nbp.pl/kursy/xml/dir.txt");
-        //final URL url = new URL("http://www.nbp.pl/kursy/xml/dir2016.txt");
+    // gap timelines are joined with current ones (gap is right before or right after current range)
+    private void merge(Exchange gap, boolean before) {
+        final HashSet<String> all = new HashSet<>(timelines.keySet());
+        all.addAll(gap.timelines.keySet());
+        final HashMap<String, Timeline> merged = new HashMap<>();
+        for (String currency : all) {
+            final Timeline timeline = new Timeline(currency);
+            timeline.addAll((before ? gap : this).timelines.get(currency));
+            timeline.addAll((before ? this : gap).timelines.get(currency));
+            merged.put(currency, timeline);
+        }
+        timelines.clear();
+        timelines.putAll(merged);
+        if (before) {
+            from = gap.from;
+            firstDay = gap.firstDay;
+        } else {
+            to = gap.to;
+        }
+        daysCount = Days.daysBetween(from, to).getDays() + 1;
+        Log.v("Exchange date range extended to " + from + " - " + to + " (days: " + daysCount + ")");
+    }
+    
+    // A and/or B tables of date range are fetched and applied, B tables are limited to given currencies or (if A 
+    // tables are fetched as well) to currencies not quoted in A tables
+    private void download(boolean a, boolean b, Set<String> missing) throws IOException, ParseException {
         final LinkedList<DirEntry> tableA = new LinkedList<>();
         final LinkedList<DirEntry> tableB = new LinkedList<>();
-        Log.v("Downloading and parsing exchange tables directory");
-        try(BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream()))) {
-            String line;
-            while (null != (line = reader.readLine())) {
-                if (line.isEmpty()) {
-                    continue;
+        final HashMap<String, HashMap<String, Quote>> tables = new HashMap<>();
+        if (!downloadRange(a, b, missing, tableA, tableB, tables)) {
+            tableA.clear();
+            tableB.clear();
+            tables.clear();
+            downloadTables(a, b, missing, tableA, tableB, tables);
+        }
+        // initial tables
+        if (!tableA.isEmpty()) {
+            apply(0, tables.get(tableA.getFirst().id));
+            tableA.removeFirst();
+        }
+        if (!tableB.isEmpty()) {
+            apply(0, tables.get(tableB.getFirst().id));
+            tableB.removeFirst();        
+        }
+        for (DateTime date = from.plusDays(1); !date.isAfter(to); date = date.plusDays(1)) {
+            int day = Days.daysBetween(from, date).getDays();
+            if (!tableA.isEmpty() && date.isAfter(tableA.getFirst().date)) {                    
+                apply(day, tables.get(tableA.getFirst().id));
+                tableA.removeFirst();
+            }
+            if (!tableB.isEmpty() && date.isAfter(tableB.getFirst().date)) {
+                apply(day, tables.get(tableB.getFirst().id));
+                tableB.removeFirst();
+            }
+        }
+        Log.v("Exchange data downloaded and processed successfully");
+    }
+    
+    // all tables of date range are fetched with few range requests (if source supports them)
+    private boolean downloadRange(boolean a, boolean b, Set<String> missing, LinkedList<DirEntry> tableA, 
+            LinkedList<DirEntry> tableB, HashMap<String, HashMap<String, Quote>> tables) throws ParseException {
+        // tables published before first day are needed as well
+        final LocalDate start = from.minusDays(RANGE_LOOKBACK_DAYS).toLocalDate();
+        final LocalDate today = new LocalDate(DateTimeZone.UTC);
+        final LocalDate end = to.toLocalDate().isAfter(today) ? today : to.toLocalDate();
+        try {
+            if (a) {
+                if (!fetchRange('a', start, end, currencies, tableA, tables)) {
+                    return false;
                 }
-                char tableType = line.charAt(0);                
-                if ('a' == tableType || 'b' == tableType) {
-                    final LinkedList<DirEntry> table = ('a' == tableType) ? tableA : tableB;
-                    final String dateStr = line.substring(line.indexOf('z') + 1);
-                    final DateTime date = dateParser.parseDateTime(dateStr);
-                    if (date.isBefore(from)) {
-                        if (!table.isEmpty()) {
-                            table.removeFirst();
-                        }
-                        table.add(new DirEntry(tableType, date, line));
-                    } else {
-                        if (date.isBefore(to)) {
-                            table.add(new DirEntry(tableType, date, line));
-                        }
+                if (tableA.isEmpty() || !tableA.getFirst().date.isBefore(from)) {
+                    Log.v("Exchange tables range does not contain A table published before " + from);
+                    return false;
+                }
+                if (b) {
+                    missing = getMissingCurrencies(tables.get(tableA.getFirst().id));
+                }
+            }
+            if (b && (null == missing || !missing.isEmpty())) {
+                if (!fetchRange('b', start, end, missing, tableB, tables)) {
+                    return false;
+                }
+                if (tableB.isEmpty() || !tableB.getFirst().date.isBefore(from)) {
+                    Log.v("Exchange tables range does not contain B table published before " + from);
+                    return false;
+                }
+            }
+        } catch (IOException ex) {
+            Log.v("Cannot download exchange tables range (" + ex.getMessage() + "), downloading single tables");
+            return false;
+        }
+        Log.v("Exchange tables range downloaded, relevant A tables counts: " + tableA.size() + " B tables count: " 
+                + tableB.size());
+        return true;
+    }
+    
+    // range is split into parts accepted by source, false if range requests are not supported
+    private boolean fetchRange(char tableType, LocalDate start, LocalDate end, Set<String> currencies, 
+            LinkedList<DirEntry> table, HashMap<String, HashMap<String, Quote>> tables) 
+                    throws IOException, ParseException {
+        for (LocalDate partStart = start; !partStart.isAfter(end); partStart = partStart.plusDays(RANGE_MAX_DAYS)) {
+            final LocalDate partEnd = partStart.plusDays(RANGE_MAX_DAYS - 1).isBefore(end) 
+                    ? partStart.plusDays(RANGE_MAX_DAYS - 1) : end;
+            Log.v("Downloading and parsing exchange tables " + Character.toUpperCase(tableType) + " published " 
+                    + partStart + " - " + partEnd);
+            final InputStream is;
+            try {
+                is = source.openTables(tableType, partStart, partEnd);
+            } catch (FileNotFoundException ex) {
+                // e.g. part contains only holidays or is after last published table
+                Log.v("No exchange tables " + Character.toUpperCase(tableType) + " published " + partStart + " - " 
+                        + partEnd);
+                continue;
+            }
+            if (null == is) {
+                return false;
+            }
+            try {
+                for (NbpTableParser.Table t : NbpTableParser.parseRange(is, currencies)) {
+                    final String id = tableType + t.getNumber();
+                    if (select(table, new DirEntry(tableType, rangeDateParser.parseDateTime(t.getDate()), id))) {
+                        tables.put(id, t.getQuotes());
                     }
-                }                
+                }
+            } finally {
+                is.close();
+            }
+        }
+        return true;
+    }
+    
+    // tables listed in directory are fetched one by one (concurrently)
+    private void downloadTables(boolean a, boolean b, Set<String> missing, LinkedList<DirEntry> tableA, 
+            LinkedList<DirEntry> tableB, HashMap<String, HashMap<String, Quote>> tables) 
+                    throws IOException, ParseException {
+        Log.v("Downloading and parsing exchange tables directory");
+        for (String line : readDirectory()) {
+            char tableType = line.charAt(0);                
+            if ((a && 'a' == tableType) || (b && 'b' == tableType)) {
+                select(('a' == tableType) ? tableA : tableB, new DirEntry(tableType, tableDate(line), line));
             }
         }
         Log.v("Directory parsed, relevant A tables counts: " + tableA.size() + " B tables count: " + tableB.size());
-        HashMap<String, Quote> current = new HashMap<>();
-        // initial table
-        parseTable(tableA.getFirst().id, current);
-        tableA.removeFirst();
-        parseTable(tableB.getFirst().id, current);
-        tableB.removeFirst();        
-        xchange[0] = current;
-        for (DateTime date = from.plusDays(1); !date.isAfter(to); date = date.plusDays(1)) {
-            if ((!tableA.isEmpty() && date.isAfter(tableA.getFirst().date)) || 
-                    (!tableB.isEmpty() && date.isAfter(tableB.getFirst().date))) {
-                current = new HashMap<>(current);
-                if (!tableA.isEmpty() && date.isAfter(tableA.getFirst().date)) {                    
-                    parseTable(tableA.getFirst().id, current);
-                    tableA.removeFirst();
-                }
-                if (!tableB.isEmpty() && date.isAfter(tableB.getFirst().date)) {
-                    parseTable(tableB.getFirst().id, current);
-                    tableB.removeFirst();
+        final HashMap<String, Future<HashMap<String, Quote>>> futures = new HashMap<>();
+        final ExecutorService pool = Executors.newFixedThreadPool(
+                Math.max(1, Math.min(concurrency, tableA.size() + tableB.size())));
+        try {
+            for (DirEntry entry : tableA) {
+                futures.put(entry.id, fetchTable(pool, entry.id, currencies));
+            }
+            // B tables (rarely traded currencies) are needed only for currencies not quoted in A tables
+            if (a && b) {
+                missing = getMissingCurrencies(await(futures.get(tableA.getFirst().id)));
+            }
+            if (null != missing && missing.isEmpty()) {
+                tableB.clear();
+            }
+            for (DirEntry entry : tableB) {
+                futures.put(entry.id, fetchTable(pool, entry.id, missing));
+            }
+            for (Map.Entry<String, Future<HashMap<String, Quote>>> e : futures.entrySet()) {
+                tables.put(e.getKey(), await(e.getValue()));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    // year directories (much shorter than full one) are used if available
+    private ArrayList<String> readDirectory() throws IOException {
+        final ArrayList<String> lines = new ArrayList<>();
+        try {
+            for (int year = from.getYear(); year <= to.getYear(); year++) {
+                readLines(source.openDirectory(year), lines);
+            }
+            if (!hasTablesBefore(lines, from)) {
+                // first tables of year, last tables of previous year are needed
+                final ArrayList<String> previous = new ArrayList<>();
+                readLines(source.openDirectory(from.getYear() - 1), previous);
+                lines.addAll(0, previous);
+            }
+        } catch (IOException ex) {
+            Log.v("Cannot read year exchange tables directory (" + ex.getMessage() + "), reading full directory");
+            lines.clear();
+            readLines(source.openDirectory(), lines);
+        }
+        return lines;
+    }
+    
+    private static void readLines(InputStream is, ArrayList<String> lines) throws IOException {
+        try(BufferedReader reader = new BufferedReader(new InputStreamReader(is))) {
+            String line;
+            while (null != (line = reader.readLine())) {
+                if (!line.isEmpty()) {
+                    lines.add(line);
                 }
             }
-            int day = Days.daysBetween(from, date).getDays();
-            xchange[day] = current;
         }
-        Log.v("Exchange data downloaded and processed successfully");
+    }
+    
+    private boolean hasTablesBefore(ArrayList<String> lines, DateTime date) {
+        boolean a = false;
+        boolean b = false;
+        for (String line : lines) {
+            final char tableType = line.charAt(0);
+            if (('a' == tableType || 'b' == tableType) && tableDate(line).isBefore(date)) {
+                a |= 'a' == tableType;
+                b |= 'b' == tableType;
+            }
+        }
+        return a && b;
+    }
+    
+    private DateTime tableDate(String id) {
+        return dateParser.parseDateTime(id.substring(id.indexOf('z') + 1));
+    }
+    
+    // keeps last table published before first day and all tables published in range (tables must be added in order)
+    private boolean select(LinkedList<DirEntry> table, DirEntry entry) {
+        if (entry.date.isBefore(from)) {
+            if (!table.isEmpty()) {
+                table.removeFirst();
+            }
+            table.add(entry);
+            return true;
+        }
+        if (entry.date.isBefore(to)) {
+            table.add(entry);
+            return true;
+        }
+        return false;
+    }
+    
+    // currencies not quoted in given A table or null if all currencies are needed
+    private Set<String> getMissingCurrencies(HashMap<String, Quote> table) {
+        if (null == currencies) {
+            return null;
+        }
+        final HashSet<String> missing = new HashSet<>(currencies);
+        missing.removeAll(table.keySet());
+        if (missing.isEmpty()) {
+            Log.v("All required currencies are quoted in A tables, skipping B tables");
+        }
+        return missing;
+    }
+    
+    /**
+     * Checks if exchange date range contains given days.
+     * @param from first day
+     * @param to last day
+     * @return true if quotes of all days from range are available
+     */
+    public boolean covers(Date from, Date to) {
+        return Math.floorDiv(from.getTime(), MILLIS_PER_DAY) >= firstDay 
+                && Math.floorDiv(to.getTime(), MILLIS_PER_DAY) < firstDay + daysCount;
+    }
+    
+    /**
+     * Checks if exchange download is completed (it may be used by other threads from then on).
+     * @return true if exchange data are available
+     */
+    public boolean isDownloaded() {
+        return downloaded;
+    }
+    
+    /**
+     * Checks if quotes of currency are available (e.g. currencies of B tables are not quoted until their tables are
+     * downloaded, see {@link #downloadMissing(Set)}).
+     * @param currency currency code
+     * @return true if currency timeline exists
+     */
+    public boolean isQuoted(String currency) {
+        return timelines.containsKey(currency) || timelines.containsKey(currency.toUpperCase(Locale.US));
     }
     
     public Quote getQuote(Date date, String currency) {
         final DateTime at = new DateTime(date);
-        final Quote entry = xchange[Days.daysBetween(from, at).getDays()].get(currency.toUpperCase(Locale.US));
-        if (null == entry) {
-            throw new RuntimeException("Entry for currency " + currency + " at " + date + " not found");
+        final int day = Days.daysBetween(from, at).getDays();
+        if (day < 0 || day >= daysCount) {
+            throw new IllegalArgumentException("Date " + date + " is out of exchange date range " + from + " - " + to);
+        }
+        final Timeline timeline = getTimeline(currency);
+        final int index = timeline.find(firstDay + day);
+        return new Quote(timeline.getCurrency(), timeline.getAmount(index), 
+                BigDecimal.valueOf(timeline.getRate(index), TransactionTable.RATE_SCALE));
+    }
+    
+    /**
+     * Finds quotes timeline of currency (lookups of many transactions should use it directly, as it does not allocate
+     * anything).
+     * @param currency currency code
+     * @return the timeline
+     */
+    public Timeline getTimeline(String currency) {
+        Timeline timeline = timelines.get(currency);
+        if (null == timeline) {
+            timeline = timelines.get(currency.toUpperCase(Locale.US));
+            if (null == timeline) {
+                throw new RuntimeException("Entry for currency " + currency + " not found");
+            }
+        }
+        return timeline;
+    }
+    
+    /**
+     * Sets maximum number of tables fetched concurrently.
+     * @param concurrency number of concurrent requests
+     */
+    public void setConcurrency(int concurrency) {
+        this.concurrency = concurrency;
+    }
+    
+    /**
+     * Limits download to A tables, B tables (rarely traded currencies) may be downloaded later only for currencies 
+     * which are not quoted in A tables (see {@link #downloadMissing(Set)}). Must be called before {@link #download()}.
+     * @param skip true if B tables should not be downloaded
+     */
+    public void setSkipTablesB(boolean skip) {
+        this.skipTablesB = skip;
+    }
+    
+    /**
+     * Limits exchange data to given currencies (quotes of other currencies are not kept and B tables are not
+     * downloaded if all currencies are quoted in A tables). Must be called before {@link #download()}.
+     * @param currencies required currencies codes or null for all currencies
+     */
+    public void setCurrencies(Set<String> currencies) {
+        if (null == currencies) {
+            this.currencies = null;
+            return;
+        }
+        this.currencies = new HashSet<>();
+        for (String currency : currencies) {
+            this.currencies.add(currency.toUpperCase(Locale.US));
+        }
+    }
+    
+    private Future<HashMap<String, Quote>> fetchTable(ExecutorService pool, final String id, 
+            final Set<String> currencies) {
+        return pool.submit(new Callable<HashMap<String, Quote>>() {
+            @Override
+            public HashMap<String, Quote> call() throws Exception {
+                return parseTable(id, currencies);
+            }
+        });
+    }
+    
+    private static HashMap<String, Quote> await(Future<HashMap<String, Quote>> table) 
+            throws IOException, ParseException {
+        try {
+            return table.get();
+        } catch (InterruptedException ex) {
+            throw new IOException("Exchange tables download interrupted", ex);
+        } catch (ExecutionException ex) {
+            final Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof ParseException) {
+                throw (ParseException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("Exchange table download failed", cause);
         }
-        return new Quote(entry.getCurrency(), entry.getAmount(), entry.getRate());
     }
     
-    private void parseTable(String id, HashMap<String, Quote> table) throws IOException, SAXException, ParseException {
+    private HashMap<String, Quote> parseTable(String id, Set<String> currencies) throws IOException, ParseException {
         Log.v("Downloading and parsing exchange table " + id);
-        URL url = new URL("http://www.nbp.pl/kursy/xml/" + id + ".xml");
-        try (InputStream is = url.openStream()) {
-            final Document doc = xmlParser.parse(new InputSource(is));
-            final NodeList nodes = doc.getDocumentElement().getElementsByTagName("pozycja"); 
-            for (int i = 0, count = nodes.getLength(); i < count; i++) {
-                final Element elem = (Element) nodes.item(i);
-                final Quote entry = new Quote();
-                for (Node n = elem.getFirstChild(); null != n; n = n.getNextSibling()) {
-                    if (n instanceof Element) {
-                        Element e = (Element) n;
-                        switch (e.getTagName()) {
-                        case "przelicznik":
-                            entry.setAmount(Integer.parseInt(e.getTextContent()));
-                            break;
-                        case "kurs_sredni":
-                            entry.setRate((BigDecimal) decimalParser.parse(e.getTextContent()));
-                            break;
-                        case "kod_waluty":
-                            entry.setCurrency(e.getTextContent().trim().toUpperCase(Locale.US));
-                            break;                            
-                        }
-                    }
+        try (InputStream is = source.openTable(id)) {
+            return NbpTableParser.parse(is, currencies);
+        }
+    }
+        
+    // table published before given day (index) replaces rates of its currencies from that day on
+    private void apply(int day, HashMap<String, Quote> table) {
+        for (Quote quote : table.values()) {
+            Timeline timeline = timelines.get(quote.getCurrency());
+            if (null == timeline) {
+                timeline = new Timeline(quote.getCurrency());
+                timelines.put(quote.getCurrency(), timeline);
+            }
+            final long rate = Money.toScaled(quote.getRate(), TransactionTable.RATE_SCALE);
+            if (Money.INEXACT == rate) {
+                throw new IllegalArgumentException("Exchange rate " + quote.getRate() + " of " + quote.getCurrency() 
+                        + " has more than " + TransactionTable.RATE_SCALE + " fraction digits");
+            }
+            timeline.add(firstDay + day, quote.getAmount(), rate);
+        }
+    }
+    
+    /**
+     * Quotes of single currency in exchange date range. Only days on which quote changes are stored (sorted by epoch
+     * day), so multi-year ranges stay small. Quote of given day is found with binary search.
+     */
+    public class Timeline {
+        
+        Timeline(String currency) {
+            this.currency = currency;
+        }
+        
+        /**
+         * Finds quote valid at given day.
+         * @param epochDay day (number of days since epoch, UTC)
+         * @return quote index (see {@link #getAmount(int)} and {@link #getRate(int)})
+         */
+        public int find(int epochDay) {
+            if (epochDay < firstDay || epochDay >= firstDay + daysCount) {
+                throw new IllegalArgumentException("Day " + epochDay + " is out of exchange date range " + from + " - " + to);
+            }
+            int index = Arrays.binarySearch(days, 0, count, epochDay);
+            if (index < 0) {
+                // last change before given day
+                index = -index - 2;
+            }
+            if (index < 0) {
+                throw new RuntimeException("Entry for currency " + currency + " at day " + epochDay + " not found");
+            }
+            return index;
+        }
+        
+        public String getCurrency() {
+            return currency;
+        }
+        
+        /**
+         * @param index quote index
+         * @return number of currency units the rate is quoted for
+         */
+        public int getAmount(int index) {
+            return amounts[index];
+        }
+        
+        /**
+         * @param index quote index
+         * @return rate scaled by {@link TransactionTable#RATE_SCALE}
+         */
+        public long getRate(int index) {
+            return rates[index];
+        }
+        
+        // quotes of other timeline (which must start after this one ends), null is ignored
+        void addAll(Timeline other) {
+            if (null != other) {
+                for (int i = 0; i < other.count; i++) {
+                    add(other.days[i], other.amounts[i], other.rates[i]);
                 }
-                table.put(entry.getCurrency(), entry);
             }
         }
+        
+        // days are added in order, later quote of the same day replaces earlier one
+        void add(int epochDay, int amount, long rate) {
+            if (count > 0 && days[count - 1] == epochDay) {
+                count--;
+            }
+            if (count > 0 && amounts[count - 1] == amount && rates[count - 1] == rate) {
+                // no change
+                return;
+            }
+            if (count == days.length) {
+                final int capacity = Math.max(INITIAL_CAPACITY, count * 2);
+                days = Arrays.copyOf(days, capacity);
+                amounts = Arrays.copyOf(amounts, capacity);
+                rates = Arrays.copyOf(rates, capacity);
+            }
+            days[count] = epochDay;
+            amounts[count] = amount;
+            rates[count] = rate;
+            count++;
+        }
+        
+        private final String currency;
+        private int[] days = new int[0];
+        private int[] amounts = new int[0];
+        private long[] rates = new long[0];
+        private int count;
     }
         
     static class DirEntry {
@@ -222,9 +673,25 @@ public class Exchange {
         private String id;
     }
     
+    private final ExchangeRateSource source;
     private DateTime from, to;    
-    private HashMap<String, Quote>[] xchange;
-    private DocumentBuilder xmlParser;
-    private DecimalFormat decimalParser;
+    private int firstDay;
+    private int daysCount;
+    private final HashMap<String, Timeline> timelines = new HashMap<>();
+    private int concurrency = DEFAULT_CONCURRENCY;
+    private HashSet<String> currencies;
+    private boolean skipTablesB;
+    // currencies of B tables downloaded after A tables (see downloadMissing)
+    private final HashSet<String> tablesBCurrencies = new HashSet<>();
+    private volatile boolean downloaded;
     private DateTimeFormatter dateParser = DateTimeFormat.forPattern("yyMMdd").withZoneUTC();
+    private DateTimeFormatter rangeDateParser = DateTimeFormat.forPattern("yyyy-MM-dd").withZoneUTC();
+    
+    private static final int DEFAULT_CONCURRENCY = 4;
+    private static final int INITIAL_CAPACITY = 16;
+    // tables are published at least weekly (B tables), two weeks cover holidays
+    private static final int RANGE_LOOKBACK_DAYS = 14;
+    // NBP API limit
+    private static final int RANGE_MAX_DAYS = 93;
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
 }
@@ -0,0 +1,46 @@
+package com.bytestorm.isp;
+
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.joda.time.LocalDate;
+
+/**
+ * Source of NBP exchange rates tables. Tables are identified as in NBP tables directory (e.g. a001z170102 is first A
+ * table of 2017 published on 2017-01-02). Tables are opened concurrently, so implementations must be thread safe.
+ */
+public interface ExchangeRateSource {
+
+    /**
+     * Opens tables directory (dir.txt format: table id per line in publication order), caller is responsible for
+     * closing it.
+     * @return directory text stream
+     */
+    public InputStream openDirectory() throws IOException;
+
+    /**
+     * Opens directory of tables published in given year (dirYYYY.txt), caller is responsible for closing it.
+     * @param year the year
+     * @return directory text stream
+     */
+    public InputStream openDirectory(int year) throws IOException;
+
+    /**
+     * Opens table XML, caller is responsible for closing it.
+     * @param id table id
+     * @return table XML stream
+     */
+    public InputStream openTable(String id) throws IOException;
+
+    /**
+     * Opens all tables of given type published in date range (NBP API ArrayOfExchangeRatesTable XML with rates per
+     * single currency unit), caller is responsible for closing it.
+     * @param tableType table type (a or b)
+     * @param start first publication day
+     * @param end last publication day (range is limited to 93 days)
+     * @return tables XML stream or null if range requests are not supported
+     * @throws FileNotFoundException if no tables were published in range
+     */
+    public InputStream openTables(char tableType, LocalDate start, LocalDate end) throws IOException;
+}
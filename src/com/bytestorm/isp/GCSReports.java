@@ -1,16 +1,17 @@
 package com.bytestorm.isp;
 
 import java.io.BufferedReader;
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
@@ -24,23 +25,31 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Map;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.prefs.BackingStoreException;
 import java.util.prefs.Preferences;
 
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.joda.time.DateTime;
 
 import com.google.api.client.auth.oauth2.Credential;
 import com.google.api.client.extensions.java6.auth.oauth2.AuthorizationCodeInstalledApp;
 import com.google.api.client.extensions.jetty.auth.oauth2.LocalServerReceiver;
+import com.google.api.client.googleapis.GoogleUtils;
 import com.google.api.client.googleapis.auth.oauth2.GoogleAuthorizationCodeFlow;
 import com.google.api.client.googleapis.auth.oauth2.GoogleClientSecrets;
 import com.google.api.client.googleapis.auth.oauth2.GoogleCredential;
-import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
 import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.ApacheHttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.IOUtils;
@@ -63,10 +72,17 @@ public class GCSReports implements ReportsProvider {
                 cfg.put("gcs.reports.bucket", DEFAULT_BUCKET);
             }
         }        
-        // Initialize the transport.
+        // Initialize the transport, single pooled transport is shared by all (concurrent) listing and download requests
+        final int concurrency = Math.max(1, cfg.getInt("gcs.download.concurrency", DEFAULT_CONCURRENCY));
+        this.chunkSize = Math.max(1, cfg.getInt("gcs.download.chunk.size", DEFAULT_CHUNK_SIZE)) * 1024L * 1024L;
+        this.retries = Math.max(1, cfg.getInt("gcs.download.retries", DEFAULT_RETRIES));
         HttpTransport httpTransport = null;
         try {
-            httpTransport = GoogleNetHttpTransport.newTrustedTransport();
+            final ApacheHttpTransport.Builder builder = new ApacheHttpTransport.Builder()
+                    .trustCertificates(GoogleUtils.getCertificateTrustStore());
+            ConnManagerParams.setMaxConnectionsPerRoute(builder.getHttpParams(), new ConnPerRouteBean(concurrency));
+            ConnManagerParams.setMaxTotalConnections(builder.getHttpParams(), concurrency * 2);
+            httpTransport = builder.build();
         } catch (GeneralSecurityException ex) {
             throw new IllegalArgumentException("Unable to create transprt", ex);
         }
@@ -74,54 +90,61 @@ public class GCSReports implements ReportsProvider {
         // storage client
         this.bucket = cfg.getProperty("gcs.reports.bucket");
         this.date = new DateTime(date);
-        Storage client = new Storage.Builder(httpTransport, JSON_FACTORY, credential)
+        final Storage client = new Storage.Builder(httpTransport, JSON_FACTORY, credential)
                 .setApplicationName(APP_NAME)
                 .build();        
-        downloadAll(client, "earnings/earnings_" + DATE_FORMAT.format(this.date.toDate()), earningReports);
+        this.keepReports = keepReports;
+        this.cache = DiskCache.open(cfg, "reports");
+        this.downloads = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                final Thread thread = new Thread(r, "gcs-download");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        Log.v("Listing storage reports (concurrency: " + concurrency + ")");
+        final Future<List<StorageObject>> earnings = list(client, "earnings/earnings_" + DATE_FORMAT.format(this.date.toDate()));
+        final Future<List<StorageObject>> sales = list(client, "sales/salesreport_" + DATE_FORMAT.format(this.date.toDate()));
+        final Future<List<StorageObject>> nextSales = list(client, 
+                "sales/salesreport_" + DATE_FORMAT.format(this.date.plusMonths(1).toDate()));
+        addAll(client, await(earnings), earningReports);
         if (earningReports.isEmpty()) {
+            downloads.shutdownNow();
             throw new IOException("Cannot find earnings report for specified date");
         }
-        downloadAll(client, "sales/salesreport_" + DATE_FORMAT.format(this.date.toDate()), salesReports);
-        downloadAll(client, "sales/salesreport_" + DATE_FORMAT.format(this.date.plusMonths(1).toDate()), salesReports);
+        addAll(client, await(sales), salesReports);
+        addAll(client, await(nextSales), salesReports);
+        // objects are downloaded in background (in reports order) and parsed as soon as they are available
+        for (ReportSource source : earningReports) {
+            ((StorageReportSource) source).startDownload();
+        }
+        for (ReportSource source : salesReports) {
+            ((StorageReportSource) source).startDownload();
+        }
+        downloads.shutdown();
         if (keepReports) {
-            Log.v("Saving downloaded CSV files");
-            // resolve collisions
-            HashMap<String, ArrayList<File>> collisions = new HashMap<>();
-            for (Map.Entry<File, String> entry : mapping.entrySet()) {
-                ArrayList<File> filesWithName = collisions.get(entry.getValue()); 
-                if (null == filesWithName) {
-                    filesWithName = new ArrayList<>();
-                    collisions.put(entry.getValue(), filesWithName);
-                }
-                filesWithName.add(entry.getKey());
+            // reports are saved independently of parsing, so also reports skipped by parser are kept whole, saving 
+            // thread is not daemon so pending reports are saved before exit
+            keeps = Executors.newSingleThreadExecutor();
+            for (ReportSource source : earningReports) {
+                ((StorageReportSource) source).startKeep();
             }
-            for (Map.Entry<String, ArrayList<File>> entry : collisions.entrySet()) {
-                if (entry.getValue().size() > 1) {
-                    // colliding filename found
-                    String name = Utils.splitFileName(entry.getKey())[0];
-                    String ext = Utils.splitFileName(entry.getKey())[1];                    
-                    int n = 1;
-                    for (File f : entry.getValue()) {
-                        mapping.put(f, name + " (" + (n++) + ")" + ext);
-                    }
-                }
-            }
-            for (Map.Entry<File, String> entry : mapping.entrySet()) {
-                final File src = entry.getKey();
-                final File dst = new File(entry.getValue());
-                Files.copy(src.toPath(), dst.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            for (ReportSource source : salesReports) {
+                ((StorageReportSource) source).startKeep();
             }
+            keeps.shutdown();
         }
     }
 
     @Override
-    public File[] getEarningsReportsFiles() throws IOException, IllegalArgumentException {
-        return earningReports.toArray(new File[earningReports.size()]);
+    public ReportSource[] getEarningsReports() throws IOException, IllegalArgumentException {
+        return earningReports.toArray(new ReportSource[earningReports.size()]);
     }
 
     @Override
-    public File[] getSalesReportsFiles() throws IOException, IllegalArgumentException {
-        return salesReports.toArray(new File[salesReports.size()]);
+    public ReportSource[] getSalesReports() throws IOException, IllegalArgumentException {
+        return salesReports.toArray(new ReportSource[salesReports.size()]);
     }
 
     @Override
@@ -129,26 +152,271 @@ public class GCSReports implements ReportsProvider {
         return date.toDate();
     }
     
-    private void downloadAll(Storage client, String prefix, ArrayList<File> out) throws IOException {
-        Storage.Objects.List list = client.objects().list(bucket);
-        list.setPrefix(prefix);
-        Objects earningsReportsObjects = list.execute();        
-        for (StorageObject obj : earningsReportsObjects.getItems()) {
-            out.add(downloadAndUnpack(client, obj));
+    private Future<List<StorageObject>> list(final Storage client, final String prefix) {
+        return downloads.submit(new Callable<List<StorageObject>>() {
+            @Override
+            public List<StorageObject> call() throws Exception {
+                Storage.Objects.List list = client.objects().list(bucket);
+                list.setPrefix(prefix);
+                Objects reportsObjects = list.execute();
+                if (null == reportsObjects.getItems()) {
+                    return Collections.emptyList();
+                }
+                return reportsObjects.getItems();
+            }
+        });
+    }
+    
+    private void addAll(Storage client, List<StorageObject> objects, ArrayList<ReportSource> out) {
+        for (StorageObject obj : objects) {
+            out.add(new StorageReportSource(client, obj));
         }
     }
     
-    private File downloadAndUnpack(Storage client, StorageObject file) throws IOException {
-        Log.v("Downloading storage file " + file.getName());
-        String fileName = file.getName();
-        Storage.Objects.Get getObject = client.objects().get(bucket, fileName);
-        ByteArrayOutputStream data = new ByteArrayOutputStream();
-        getObject.getMediaHttpDownloader().setDirectDownloadEnabled(true);
-        getObject.executeMediaAndDownloadTo(data);
-        File out = File.createTempFile("tmp", ".csv");
-        String origName = Utils.unpack(new ByteArrayInputStream(data.toByteArray()), out);
-        mapping.put(out, origName);
-        return out;
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            throw new IOException("Storage request interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
+            }
+            throw new IOException("Storage request failed", ex.getCause());
+        }
+    }
+    
+    private synchronized File resolveKeptFile(String name) {
+        String keptName = name;
+        for (int n = 1; keptNames.contains(keptName); n++) {
+            final String[] split = Utils.splitFileName(name);
+            keptName = split[0] + " (" + n + ")" + split[1];
+        }
+        keptNames.add(keptName);
+        return new File(keptName);
+    }
+    
+    private class StorageReportSource implements ReportSource {
+        
+        StorageReportSource(Storage client, StorageObject obj) {
+            this.client = client;
+            this.obj = obj;
+        }
+
+        @Override
+        public String getName() {
+            if (null != entryName) {
+                return entryName;
+            }
+            final String name = obj.getName();
+            return name.substring(name.lastIndexOf('/') + 1);
+        }
+
+        @Override
+        public long getSizeHint() {
+            return null != obj.getSize() ? obj.getSize().longValue() : -1;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            if (null != kept) {
+                return new FileInputStream(await(kept));
+            }
+            return openEntry();
+        }
+        
+        void startKeep() {
+            kept = keeps.submit(new Callable<File>() {
+                @Override
+                public File call() throws Exception {
+                    try (InputStream in = openEntry()) {
+                        final File file = resolveKeptFile(entryName);
+                        Log.v("Saving downloaded CSV file " + file);
+                        Files.copy(in, file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+                        return file;
+                    } catch (IOException ex) {
+                        // report may be never opened by parser
+                        System.err.println("Cannot save report " + obj.getName() + ": " + ex.getMessage());
+                        throw ex;
+                    }
+                }
+            });
+        }
+        
+        // CSV data stream (from cache or downloaded object)
+        private InputStream openEntry() throws IOException {
+            File cached = getCached();
+            if (null == cached && null != cache) {
+                cached = unpackToCache();
+            }
+            if (null != cached) {
+                return new FileInputStream(cached);
+            }
+            final String[] name = new String[1];
+            final InputStream in = Utils.openZipEntry(openObject(), name);
+            entryName = name[0];
+            return in;
+        }
+        
+        void startDownload() throws IOException {
+            if (null != getCached()) {
+                Log.v("Using cached report " + obj.getName());
+                return;
+            }
+            file = File.createTempFile("isp-", ".zip");
+            file.deleteOnExit();
+            final long size = getSizeHint();
+            if (size > chunkSize) {
+                // large objects are fetched in parallel ranges, so single slow connection doesn't stall whole download
+                Log.v("Downloading storage file " + obj.getName() + " in " + ((size + chunkSize - 1) / chunkSize) + " parts");
+                for (long start = 0; start < size; start += chunkSize) {
+                    parts.add(downloads.submit(new PartDownload(file, start, Math.min(size, start + chunkSize))));
+                }
+            } else {
+                Log.v("Downloading storage file " + obj.getName());
+                parts.add(downloads.submit(new PartDownload(file, 0, -1)));
+            }
+        }
+        
+        // unpacked CSV stored in cache (if cached)
+        private File getCached() throws IOException {
+            if (null == cache) {
+                return null;
+            }
+            final String name = cache.getString(getCacheKey() + "#entry");
+            final File cached = null != name ? cache.get(getCacheKey()) : null;
+            if (null != cached) {
+                entryName = name;
+            }
+            return cached;
+        }
+        
+        private File unpackToCache() throws IOException {
+            final String[] name = new String[1];
+            try (InputStream in = Utils.openZipEntry(openObject(), name)) {
+                final File cached = cache.put(getCacheKey(), in);
+                // entry name is stored after data, so it is present only if data is complete
+                cache.putString(getCacheKey() + "#entry", name[0]);
+                entryName = name[0];
+                return cached;
+            }
+        }
+        
+        // published report never changes, but object can be replaced (new generation)
+        private String getCacheKey() {
+            return "gs://" + bucket + "/" + obj.getName() + "#" + obj.getGeneration() + "#" + obj.getMd5Hash();
+        }
+        
+        // downloaded object data, temporary file is removed when stream is closed
+        private synchronized InputStream openObject() throws IOException {
+            if (null == file) {
+                // already consumed, download again
+                Log.v("Downloading storage file " + obj.getName());
+                return client.objects().get(bucket, obj.getName()).executeMediaAsInputStream();
+            }
+            final File downloaded = file;
+            file = null;
+            try {
+                for (Future<Void> part : parts) {
+                    await(part);
+                }
+            } catch (IOException ex) {
+                for (Future<Void> part : parts) {
+                    part.cancel(true);
+                }
+                downloaded.delete();
+                throw ex;
+            } finally {
+                parts.clear();
+            }
+            return new FileInputStream(downloaded) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        downloaded.delete();
+                    }
+                }
+            };
+        }
+        
+        // downloads object range [start, end) (or whole object if end is -1) to file, failed part is retried alone
+        private class PartDownload implements Callable<Void> {
+            
+            PartDownload(File target, long start, long end) {
+                this.target = target;
+                this.start = start;
+                this.end = end;
+            }
+            
+            @Override
+            public Void call() throws Exception {
+                for (int attempt = 1; ; attempt++) {
+                    try {
+                        fetch();
+                        return null;
+                    } catch (IOException ex) {
+                        if (attempt >= retries || Thread.currentThread().isInterrupted()) {
+                            throw ex;
+                        }
+                        Log.v("Download of " + obj.getName() + " part " + start + "-" + end + " failed (" 
+                                + ex.getMessage() + "), retrying");
+                    }
+                }
+            }
+            
+            private void fetch() throws IOException {
+                final Storage.Objects.Get get = client.objects().get(bucket, obj.getName());
+                // all parts have to be taken from same object version
+                get.setGeneration(obj.getGeneration());
+                if (end >= 0) {
+                    get.getRequestHeaders().setRange("bytes=" + start + "-" + (end - 1));
+                }
+                try (InputStream in = get.executeMediaAsInputStream(); 
+                        FileChannel out = FileChannel.open(target.toPath(), StandardOpenOption.WRITE)) {
+                    final byte[] buf = new byte[64 * 1024];
+                    long pos = start;
+                    int count;
+                    while ((count = in.read(buf)) > 0) {
+                        final ByteBuffer bb = ByteBuffer.wrap(buf, 0, count);
+                        while (bb.hasRemaining()) {
+                            pos += out.write(bb, pos);
+                        }
+                    }
+                    if (end >= 0 && pos != end) {
+                        throw new IOException("Incomplete part " + start + "-" + end + " (received " + (pos - start) 
+                                + " bytes)");
+                    }
+                    if (end < 0) {
+                        out.truncate(pos);
+                    }
+                }
+            }
+            
+            private final File target;
+            private final long start;
+            private final long end;
+        }
+        
+        @Override
+        public FileChannel openChannel() throws IOException {
+            // only cached and kept reports are stored as uncompressed local files
+            if (null != kept) {
+                return FileChannel.open(await(kept).toPath(), StandardOpenOption.READ);
+            }
+            final File cached = getCached();
+            return null != cached ? FileChannel.open(cached.toPath(), StandardOpenOption.READ) : null;
+        }
+        
+        private final Storage client;
+        private final StorageObject obj;
+        private volatile String entryName;
+        // temporary file with object data and its pending parts downloads
+        private File file;
+        private final ArrayList<Future<Void>> parts = new ArrayList<>();
+        // saved CSV file (set only if reports are kept)
+        private Future<File> kept;
     }
     
     private Credential authorize(HttpTransport http, Configuration config) throws IOException, IllegalArgumentException {
@@ -303,11 +571,21 @@ public class GCSReports implements ReportsProvider {
     
     private String bucket;
     private DateTime date;
-    private ArrayList<File> earningReports = new ArrayList<>();
-    private ArrayList<File> salesReports = new ArrayList<>();
-    private HashMap<File, String> mapping = new HashMap<>();
+    private boolean keepReports;
+    private ExecutorService downloads;
+    private ExecutorService keeps;
+    private DiskCache cache;
+    private long chunkSize;
+    private int retries;
+    private ArrayList<ReportSource> earningReports = new ArrayList<>();
+    private ArrayList<ReportSource> salesReports = new ArrayList<>();
+    private HashSet<String> keptNames = new HashSet<>();
     
     private static final String DEFAULT_BUCKET = "<PLAY_BUCKET>";
+    private static final int DEFAULT_CONCURRENCY = 4;
+    // MB
+    private static final int DEFAULT_CHUNK_SIZE = 16;
+    private static final int DEFAULT_RETRIES = 3;
     
     private static final String APP_NAME = "Bytestorm-ISP/1.0";
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMM");
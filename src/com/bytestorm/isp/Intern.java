@@ -0,0 +1,32 @@
+package com.bytestorm.isp;
+
+import java.math.BigDecimal;
+
+import org.supercsv.cellprocessor.CellProcessorAdaptor;
+import org.supercsv.util.CsvContext;
+
+/**
+ * Replaces String and BigDecimal values with canonical instances from {@link InternPool}, other values (and all values
+ * if pool is null) are passed through unchanged. Should be used as last processor of chain (after parsing).
+ */
+public class Intern extends CellProcessorAdaptor {
+
+    public Intern(InternPool pool) {
+        super();
+        this.pool = pool;
+    }
+
+    @Override
+    public Object execute(Object value, CsvContext context) {
+        if (null != pool) {
+            if (value instanceof String) {
+                value = pool.intern((String) value);
+            } else if (value instanceof BigDecimal) {
+                value = pool.intern((BigDecimal) value);
+            }
+        }
+        return next.execute(value, context);
+    }
+
+    private final InternPool pool;
+}
@@ -0,0 +1,86 @@
+package com.bytestorm.isp;
+
+import java.math.BigDecimal;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe pool of canonical String and BigDecimal instances. Report columns like currencies, countries, SKUs
+ * or price points hold only handful of distinct values, so each parsed row can share instances instead of keeping
+ * its own copies. Pool is meant to live only during reports ingest, once it holds maximum number of values new
+ * ones are passed through unchanged.
+ */
+public class InternPool {
+
+    public InternPool() {
+        this(DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * @param maxSize maximum number of pooled values (of each type)
+     */
+    public InternPool(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public String intern(String value) {
+        return intern(strings, value);
+    }
+
+    /**
+     * Interns decimal value, values are pooled by {@link BigDecimal#equals(Object)} so scale is preserved.
+     * @param value the value
+     * @return pooled instance (or value itself)
+     */
+    public BigDecimal intern(BigDecimal value) {
+        return intern(decimals, value);
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public int size() {
+        return strings.size() + decimals.size();
+    }
+
+    /**
+     * Pool usage statistics (for diagnostic purposes).
+     * @return the statistics summary
+     */
+    public String getStats() {
+        final long hitsCount = getHits();
+        final long total = hitsCount + getMisses();
+        return String.format("%d strings, %d decimals, hit rate %.1f%% (%d of %d)", strings.size(), decimals.size(),
+                total > 0 ? hitsCount * 100.0 / total : 0.0, hitsCount, total);
+    }
+
+    private <T> T intern(ConcurrentHashMap<T, T> pool, T value) {
+        if (null == value) {
+            return null;
+        }
+        final T pooled = pool.get(value);
+        if (null != pooled) {
+            hits.increment();
+            return pooled;
+        }
+        misses.increment();
+        if (pool.size() >= maxSize) {
+            return value;
+        }
+        final T existing = pool.putIfAbsent(value, value);
+        return null != existing ? existing : value;
+    }
+
+    private final int maxSize;
+    private final ConcurrentHashMap<String, String> strings = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<BigDecimal, BigDecimal> decimals = new ConcurrentHashMap<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    private static final int DEFAULT_MAX_SIZE = 64 * 1024;
+}
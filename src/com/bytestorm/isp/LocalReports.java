@@ -1,13 +1,18 @@
 package com.bytestorm.isp;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
 
 public class LocalReports implements ReportsProvider {
 
@@ -29,16 +34,12 @@ public class LocalReports implements ReportsProvider {
             m = RE_EARNINGS_ZIP.matcher(filename);
             if (m.matches()) {
                 date = checkDates(date, m.group(1));
-                final File earningReportCsv = File.createTempFile("earnings", ".csv");
-                Utils.unpack(f, earningReportCsv);
-                earningsReports.add(earningReportCsv);
+                earningsReports.add(createSource(f));
                 continue;
             }
             m = RE_SALES_ZIP.matcher(filename); 
             if (m.matches()) {
-                final File salesReportCsv = File.createTempFile("sales", ".csv");
-                Utils.unpack(f, salesReportCsv);
-                salesReports.add(salesReportCsv);
+                salesReports.add(createSource(f));
                 continue;
             }
             m = RE_CVS.matcher(filename);
@@ -48,11 +49,11 @@ public class LocalReports implements ReportsProvider {
                 case "playapps":
                 case "earnings":
                     date = checkDates(date, m.group(2));
-                    earningsReports.add(f);
+                    earningsReports.add(createSource(f));
                     break;
                 case "salesreport":
                 case "sales":              
-                    salesReports.add(f);
+                    salesReports.add(createSource(f));
                     break;
                 default:
                     throw new IllegalArgumentException("Unrecognized CSV file " + filename);
@@ -72,13 +73,13 @@ public class LocalReports implements ReportsProvider {
     }
 
     @Override
-    public File[] getEarningsReportsFiles() throws IOException, IllegalArgumentException {
-        return earningsReports.toArray(new File[earningsReports.size()]);
+    public ReportSource[] getEarningsReports() throws IOException, IllegalArgumentException {
+        return earningsReports.toArray(new ReportSource[earningsReports.size()]);
     }
 
     @Override
-    public File[] getSalesReportsFiles() throws IOException, IllegalArgumentException {
-        return salesReports.toArray(new File[salesReports.size()]);
+    public ReportSource[] getSalesReports() throws IOException, IllegalArgumentException {
+        return salesReports.toArray(new ReportSource[salesReports.size()]);
     }
     
     @Override
@@ -86,6 +87,13 @@ public class LocalReports implements ReportsProvider {
         return reportsDate;
     }    
 
+    private static ReportSource createSource(File f) throws IOException {
+        if (f.getName().toLowerCase().endsWith(".zip")) {
+            return new ZipReportSource(f);
+        }
+        return new CsvReportSource(f);
+    }
+
     private static String checkDates(String date1, String date2) throws IllegalArgumentException {
         if (null == date2) {
             throw new IllegalArgumentException("Date not matched in report filename");
@@ -99,15 +107,76 @@ public class LocalReports implements ReportsProvider {
         return date1;
     }
 
+    private static class CsvReportSource implements ReportSource {
+        
+        CsvReportSource(File file) {
+            this.file = file;
+        }
+
+        @Override
+        public String getName() {
+            return file.getName();
+        }
+
+        @Override
+        public long getSizeHint() {
+            return file.length();
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return new FileInputStream(file);
+        }
+        
+        @Override
+        public FileChannel openChannel() throws IOException {
+            return FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        }
+        
+        private final File file;
+    }
+    
+    private static class ZipReportSource implements ReportSource {
+        
+        ZipReportSource(File zipFile) throws IOException {
+            this.zipFile = zipFile;
+            this.entry = Utils.getZipEntry(zipFile);
+        }
+
+        @Override
+        public String getName() {
+            return entry.getName();
+        }
+
+        @Override
+        public long getSizeHint() {
+            return entry.getSize() >= 0 ? entry.getSize() : zipFile.length();
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return Utils.openZipEntry(zipFile);
+        }
+        
+        @Override
+        public FileChannel openChannel() throws IOException {
+            return null;
+        }
+        
+        private final File zipFile;
+        private final ZipEntry entry;
+    }
+
     private String date;
     private Date reportsDate;
-    private ArrayList<File> earningsReports = new ArrayList<>();
-    private ArrayList<File> salesReports = new ArrayList<>();
+    private ArrayList<ReportSource> earningsReports = new ArrayList<>();
+    private ArrayList<ReportSource> salesReports = new ArrayList<>();
     
     // file names regexps
     private static final Pattern RE_SALES_ZIP = Pattern.compile("^salesreport_(\\d{6})\\.zip$");
     private static final Pattern RE_EARNINGS_ZIP = Pattern.compile("^earnings_(\\d{6})_\\d{16}-\\d+\\.zip$");
-    private static final Pattern RE_CVS = Pattern.compile("^(\\p{Alpha}*)_(\\d{6})\\.zip$");
+    // plain (or zipped) CSV report, e.g. PlayApps_201701.csv extracted from earnings zip, optionally numbered
+    private static final Pattern RE_CVS = Pattern.compile("^(\\p{Alpha}*)_(\\d{6})(?:_\\d+)?\\.(?:zip|csv)$");
     
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMM");
 }
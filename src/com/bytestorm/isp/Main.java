@@ -3,21 +3,25 @@ package com.bytestorm.isp;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
 import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.List;
 import java.util.Map;
-import java.util.TreeMap;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -31,6 +35,8 @@ import org.apache.poi.ss.usermodel.Sheet;
 import org.apache.poi.ss.util.CellRangeAddress;
 import org.apache.poi.xssf.usermodel.XSSFWorkbook;
 import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.supercsv.cellprocessor.ift.CellProcessor;
 import org.supercsv.io.CsvBeanReader;
 import org.supercsv.io.ICsvBeanReader;
 import org.supercsv.prefs.CsvPreference;
@@ -62,7 +68,12 @@ public class Main {
         options.addOption(null, "no-vat-sheet", false, "disables vat sheet output");
         options.addOption(null, "no-vat", false, "disables VAT data processing (sales reports will not be used, implies no-vat-sheet)");
         options.addOption(null, "keep-reports", false, "keep download CSV reports, this switch is ignored in local mode");
+        options.addOption(null, "no-cache", false, "disables local cache of downloaded reports");
         options.addOption(null, "process-tax-reports", false, "process tax only records");
+        options.addOption(null, "parallel-ingest", false, "parse reports files concurrently");
+        options.addOption(null, "mmap-input", false, "read local uncompressed reports using memory mapped files");
+        options.addOption(null, "summary-only", false, "aggregate reports while parsed and skip transactions sheet (low memory mode)");
+        options.addOption(null, "nbp-archive", true, "read NBP exchange tables from local directory or zip instead of NBP web site");
         help.setWidth(80);
         try {            
             final CommandLine cli = parser.parse(options, args);
@@ -111,6 +122,12 @@ public class Main {
             if (cli.hasOption('o')) {
                 outFile = new File(cli.getArgs()[1]);
             }
+            if (cli.hasOption("no-cache")) {
+                config.setBoolean("cache.enabled", false);
+            }
+            if (cli.hasOption("nbp-archive")) {
+                config.setProperty("nbp.archive", cli.getOptionValue("nbp-archive"));
+            }
             ReportsProvider reports;
             if (null == reportsDir) {
                 // GCS mode - use google APIs lib to download reports from GCS storage (as defined in Play Console)
@@ -152,6 +169,15 @@ public class Main {
             if (cli.hasOption("process-tax-reports")) {
                 config.setBoolean("process.tax.only.reports", false);
             }            
+            if (cli.hasOption("parallel-ingest")) {
+                config.setBoolean("process.parallel.ingest", true);
+            }
+            if (cli.hasOption("mmap-input")) {
+                config.setBoolean("process.mmap.input", true);
+            }
+            if (cli.hasOption("summary-only")) {
+                config.setBoolean("process.summary.only", true);
+            }
             if (cli.hasOption("no-xchange-sheet")) {
                 config.setBoolean("output.xchange.sheet", false);
             }
@@ -165,11 +191,11 @@ public class Main {
                 outFile = new File(DATE_FORMAT.format(reports.getDate()) + ".xlsx");
             }
             Log.v("Report date: " + reports.getDate());
-            for (File file : reports.getEarningsReportsFiles()) {
-                Log.v("Earnings report file: " + file.getAbsolutePath());
+            for (ReportSource source : reports.getEarningsReports()) {
+                Log.v("Earnings report: " + source.getName());
             }
-            for (File file : reports.getSalesReportsFiles()) {
-                Log.v("Sales report file: " + file.getAbsolutePath());
+            for (ReportSource source : reports.getSalesReports()) {
+                Log.v("Sales report: " + source.getName());
             }
             if (cli.hasOption("no-overwrite")) {
                 if (outFile.exists()) {
@@ -179,50 +205,96 @@ public class Main {
                 }
             }
             // process transactions
-            List<Transaction> transactions = parseInputCsvs(reports, 
-                    !config.getBoolean("process.transactions.vat", true),
-                    !config.getBoolean("process.tax.only.reports", false));
-            final Date from = transactions.get(0).getDate();
-            final Date to = transactions.get(transactions.size() - 1).getDate();
-            if (config.getBoolean("output.xchange.sheet", true)) {                
-                try {
-                    final Exchange xchg = new Exchange(from, to);
-                    xchg.download();                
-                    for (Transaction t : transactions) {
-                        final String buyerCurrency = t.getBuyerCurrency();                         
-                        if (!buyerCurrency.equals(t.getMerchantCurrency())) {
-                            Exchange.Quote xchgEntry = xchg.getQuote(t.getDate(), buyerCurrency);
-                            t.setConversionRateBaseAmount(xchgEntry.getAmount());
-                            t.setConversionRate(xchgEntry.getRate());
-                        }                        
+            final boolean noVat = !config.getBoolean("process.transactions.vat", true);
+            final TransactionTable transactions;
+            final TransactionAggregates aggregates;
+            if (config.getBoolean("process.summary.only", false)) {
+                Exchange xchg = null;
+                FutureTask<Void> download = null;
+                if (config.getBoolean("output.xchange.sheet", true)) {
+                    // transactions are aggregated while parsed, A tables of reports month (extended by margin) are
+                    // downloaded meanwhile, transactions parsed before download is completed, out of that range or
+                    // in currencies quoted only in B tables are converted after parsing
+                    final DateTime month = getReportsMonth(reports);
+                    final int margin = Math.max(0, config.getInt("nbp.prefetch.margin", 2));
+                    try {
+                        // transactions currencies are not known before reports are parsed
+                        xchg = createExchange(config, month.minusDays(margin).toDate(), 
+                                month.plusMonths(1).minusDays(1).plusDays(margin).toDate(), null);
+                        xchg.setSkipTablesB(true);
+                        download = startDownload(xchg);
+                    } catch (Exception ex) {
+                        System.err.println("Cannot download or parse NBP exchange data");
+                        ex.printStackTrace();
+                        System.exit(2);
                     }
-                } catch (Exception ex) {
-                    System.err.println("Cannot download or parse NBP exchange data");
-                    ex.printStackTrace();
-                    System.exit(2);
                 }
-            }
-            for (Transaction t : transactions) {
-                final String buyerCurrency = t.getBuyerCurrency();                                                                    
-                // currency format lookup init
-                if (null == perCurrecyAmountFormat.get(buyerCurrency)) {
-                    perCurrecyAmountFormat.put(buyerCurrency, CellStyleType.AMOUNT_SHORT);
+                transactions = null;
+                aggregates = aggregateInputCsvs(reports, config, xchg, download);
+            } else {
+                // A tables of reports month are downloaded while reports are parsed (if enabled, currencies are not
+                // known yet so B tables are downloaded after parsing only if needed)
+                Exchange prefetched = null;
+                FutureTask<Void> prefetch = null;
+                if (config.getBoolean("output.xchange.sheet", true) && config.getBoolean("nbp.prefetch", true)) {
+                    final DateTime month = getReportsMonth(reports);
+                    final int margin = Math.max(0, config.getInt("nbp.prefetch.margin", 2));
+                    try {
+                        prefetched = createExchange(config, month.minusDays(margin).toDate(), 
+                                month.plusMonths(1).minusDays(1).plusDays(margin).toDate(), null);
+                        prefetched.setSkipTablesB(true);
+                        prefetch = startDownload(prefetched);
+                    } catch (IOException | IllegalArgumentException ex) {
+                        // reported when exchange is created for transactions dates
+                        prefetched = null;
+                    }
                 }
-                // check if amount has fraction point
-                if (!t.getAmount().subtract(t.getAmount().setScale(0, RoundingMode.FLOOR)).equals(BigDecimal.ZERO)) {
-                    perCurrecyAmountFormat.put(buyerCurrency, CellStyleType.AMOUNT);
+                transactions = parseInputCsvs(reports, config);
+                final Date from = transactions.getDate(0);
+                final Date to = transactions.getDate(transactions.size() - 1);
+                if (config.getBoolean("output.xchange.sheet", true)) {                
+                    try {
+                        final Set<String> currencies = getForeignCurrencies(transactions);
+                        Exchange xchg = null;
+                        if (null != prefetched) {
+                            xchg = awaitDownload(prefetched, prefetch, from, to, currencies);
+                        }
+                        if (null == xchg) {
+                            xchg = createExchange(config, from, to, currencies);
+                            xchg.download();                
+                        }
+                        for (int row = 0, count = transactions.size(); row < count; row++) {
+                            if (!transactions.isMerchantCurrency(row)) {
+                                final Exchange.Timeline timeline = xchg.getTimeline(transactions.getBuyerCurrency(row));
+                                final int quote = timeline.find(transactions.getEpochDay(row));
+                                transactions.setConversionRate(row, timeline.getAmount(quote), timeline.getRate(quote));
+                            }                        
+                        }
+                    } catch (Exception ex) {
+                        System.err.println("Cannot download or parse NBP exchange data");
+                        ex.printStackTrace();
+                        System.exit(2);
+                    }
                 }
+                // all sheets aggregates are computed in single pass
+                aggregates = TransactionAggregates.of(transactions, EU_CURRENCIES, !noVat);
+            }
+            logAggregates(aggregates);
+            for (String currency : aggregates.getPivot().getCurrencies()) {
+                perCurrecyAmountFormat.put(currency, aggregates.isFractional(currency) ? CellStyleType.AMOUNT : CellStyleType.AMOUNT_SHORT);
             }
             try(FileOutputStream out = new FileOutputStream(outFile)) {
                 Log.v("Creating output XLSX");
                 final WorkbookStyle wb = new WorkbookStyle(new XSSFWorkbook(), config);
-                createTransactionsSheet(wb, transactions, !config.getBoolean("process.transactions.vat", true));
-                createPivotSheet(wb, transactions);
-                if (config.getBoolean("process.transactions.vat", true) && config.getBoolean("output.vat.sheet", true)) {
-                    createVatSheet(wb, transactions);
+                if (null != transactions) {
+                    createTransactionsSheet(wb, transactions, noVat);
+                }
+                createPivotSheet(wb, aggregates.getPivot());
+                if (!noVat && config.getBoolean("output.vat.sheet", true)) {
+                    createVatSheet(wb, aggregates);
                 }
                 if (config.getBoolean("output.summary.sheet", true)) {
-                    createSummarySheet(wb, transactions, !config.getBoolean("process.transactions.vat", true));
+                    createSummarySheet(wb, aggregates, noVat);
                 }
                 Log.v("Saving output XLSX file " + outFile);
                 wb.getWorkbook().write(out);
@@ -242,146 +314,582 @@ public class Main {
         }
     }
     
-    private static List<Transaction> parseInputCsvs(ReportsProvider reports, boolean noVat, boolean noTaxOnlyReports) throws IOException {
-        ArrayList<Transaction> retval = new ArrayList<>();        
-        File[] earningsReports = reports.getEarningsReportsFiles();
+    private static TransactionTable parseInputCsvs(ReportsProvider reports, Configuration config) throws IOException {
+        final boolean noVat = !config.getBoolean("process.transactions.vat", true);
+        final boolean noTaxOnlyReports = !config.getBoolean("process.tax.only.reports", false);
+        final IngestOptions ingest = new IngestOptions(config);
+        TransactionTable retval = new TransactionTable();        
+        ReportSource[] earningsReports = reports.getEarningsReports();
+        EarningsReport[] parsedReports = parseEarningsReports(earningsReports, ingest);
         int ignoredTaxReportsCount = 0;
-        for (File file : earningsReports) {
-            // report data
-            ArrayList<Transaction> reportTransactions = new ArrayList<>();
-            BigDecimal incomeInReport = BigDecimal.ZERO;
-            int transactionsInReport = 0;
-            boolean taxOnlyReport = true;
-            try(ICsvBeanReader beanReader = new CsvBeanReader(new FileReader(file), CsvPreference.STANDARD_PREFERENCE)) {                
-                /* final String[] header = */ beanReader.getHeader(true); // header will be ignored                                
-                Transaction t;            
-                while ((t = beanReader.read(Transaction.class, Transaction.MAPPING, Transaction.CSV)) != null) {
-                    if (null == t.getTransactionType()) {
-                        // tax deduction reports in some cases contains invalid rows with 0 payout, so skip it
-                        if (BigDecimal.ZERO.compareTo(t.getPayout()) == 0) {
-                            continue;
-                        }
-                        throw new IOException("Invalid row " + beanReader.getRowNumber() 
-                                + " - transaction don't have associated type and have value\n" + beanReader.getUntokenizedRow());
-                    }
-                    if (null == t.getId()) {
-                        if (Transaction.Type.TAX != t.getTransactionType()) {
-                            throw new IOException("Invalid row " + beanReader.getRowNumber() 
-                                    + " - non-tax deduction transaction without id\n" + beanReader.getUntokenizedRow());
-                        }
-                    }
-                    incomeInReport = incomeInReport.add(t.getPayout());
-                    ++transactionsInReport;
-                    if (Transaction.Type.TAX != t.getTransactionType()) {
-                        taxOnlyReport = false;
-                    }                    
-                    reportTransactions.add(t);   
-                }                               
-            }
-            if (taxOnlyReport) {
+        for (int i = 0; i < parsedReports.length; i++) {
+            final EarningsReport report = parsedReports[i];
+            // report chunk is merged to table and released
+            parsedReports[i] = null;
+            if (report.taxOnly) {
                 if (noTaxOnlyReports) {
                     Log.v("Tax only report processed (ignored)");
                     ++ignoredTaxReportsCount;
                 } else {
                     Log.v("Tax only report processed");
-                    retval.addAll(reportTransactions);
+                    report.addTo(retval);
                 }
             } else {
                 Log.v("Transactions report processed");
-                retval.addAll(reportTransactions);
+                report.addTo(retval);
             }
-            Log.v(String.format("  - total income : %.02f PLN", incomeInReport.floatValue()));
-            Log.v("  - total entries: " + transactionsInReport);                     
+            logEarningsReport(report);
         }
-        // collect global info
-        HashMap<String, Integer> sellsBySku = new HashMap<>();
-        HashMap<String, Integer> refundsBySku = new HashMap<>();
-        HashSet<String> skus = new HashSet<>();        
-        BigDecimal income = BigDecimal.ZERO;
-        BigDecimal taxDeduction = BigDecimal.ZERO;
-        HashMap<String, Transaction> transactionsLookup = new HashMap<>();
-        for (Transaction t : retval) {
-            if (Transaction.Type.TAX == t.getTransactionType()) {                    
-                taxDeduction = taxDeduction.add(t.getPayout());
+        Log.v("Reports processed");
+        Log.v("  - total reports: " + earningsReports.length);
+        if (ignoredTaxReportsCount > 0) {
+            Log.v("    - ignored tax only reports: " + ignoredTaxReportsCount);
+        }
+        Log.v("  - total entries: " + retval.size());
+        retval.sortByDate();
+        if (!noVat) {            
+            matchSalesReports(reports, retval, ingest);
+        }        
+        Log.v("Interned values: " + ingest.internPool.getStats());
+        return retval; 
+    }    
+    
+    // summary only mode - transactions are aggregated as reports are parsed (converted with exchange rates once xchg
+    // download is completed or with reports rates if xchg is null), only charges (which are checked with sales 
+    // reports and EU ones need VAT data) are kept in compact form and transactions which cannot be converted while 
+    // parsed are kept until exchange data of their dates and currencies are downloaded
+    private static TransactionAggregates aggregateInputCsvs(ReportsProvider reports, Configuration config, 
+            Exchange xchg, FutureTask<Void> download) throws IOException {
+        final boolean noVat = !config.getBoolean("process.transactions.vat", true);
+        final boolean noTaxOnlyReports = !config.getBoolean("process.tax.only.reports", false);
+        final IngestOptions ingest = new IngestOptions(config);
+        ingest.aggregate = true;
+        ingest.exchange = xchg;
+        ingest.vat = !noVat;
+        final TransactionAggregates retval = new TransactionAggregates(EU_CURRENCIES, !noVat);
+        final VatCharges charges = new VatCharges();
+        final TransactionTable deferred = new TransactionTable();
+        final ReportSource[] earningsReports = reports.getEarningsReports();
+        final EarningsReport[] parsedReports = parseEarningsReports(earningsReports, ingest);
+        int ignoredTaxReportsCount = 0;
+        for (int i = 0; i < parsedReports.length; i++) {
+            final AggregatedReport report = (AggregatedReport) parsedReports[i];
+            parsedReports[i] = null;
+            if (report.taxOnly && noTaxOnlyReports) {
+                Log.v("Tax only report processed (ignored)");
+                ++ignoredTaxReportsCount;
             } else {
-                // initialize per SKU counters
-                String sku = t.getSkuId();
-                if (!sellsBySku.containsKey(sku)) {
-                    sellsBySku.put(sku, 0);
-                }
-                if (!refundsBySku.containsKey(sku)) {
-                    refundsBySku.put(sku, 0);
-                }
-                skus.add(sku);
-                if (Transaction.Type.CHARGE == t.getTransactionType()) {
-                    sellsBySku.put(sku, sellsBySku.get(sku) + 1);
-                    transactionsLookup.put(t.getId(), t);
-                } else if (Transaction.Type.REFUND == t.getTransactionType()) {
-                    refundsBySku.put(sku, refundsBySku.get(sku) + 1);
-                }                    
+                Log.v(report.taxOnly ? "Tax only report processed" : "Transactions report processed");
+                retval.merge(report.aggregates);
+                charges.addAll(report.charges);
+                // transactions not converted while parsed
+                report.addTo(deferred);
             }
-            income = income.add(t.getPayout());
+            logEarningsReport(report);
         }
         Log.v("Reports processed");
         Log.v("  - total reports: " + earningsReports.length);
         if (ignoredTaxReportsCount > 0) {
             Log.v("    - ignored tax only reports: " + ignoredTaxReportsCount);
         }
-        Log.v("  - total entries: " + retval.size());
-        Log.v("Transactions by SKU:");
-        for (String sku : skus) {
-            Log.v("  - SKU: " + sku);
-            Log.v("    - sells  : " + sellsBySku.get(sku));
-            Log.v("    - refunds: " + refundsBySku.get(sku));            
-        }
-        Log.v(String.format("Tax deduction: %.02f PLN", taxDeduction.negate().floatValue()));
-        Log.v(String.format("Total income : %.02f PLN", income.floatValue()));
-        Collections.sort(retval, new Comparator<Transaction>() {
-            @Override
-            public int compare(Transaction o1, Transaction o2) {
-                return Long.compare(o1.getDate().getTime(), o2.getDate().getTime());
-            }
-        });
-        if (!noVat) {            
-            File[] salesReports = reports.getSalesReportsFiles();
-            for (File file : salesReports) {
-                Log.v("Loading sales report CSV file " + file.getAbsolutePath());
-                try(ICsvBeanReader beanReader = new CsvBeanReader(new FileReader(file), CsvPreference.STANDARD_PREFERENCE)) {
-                    /* final String[] header = */ beanReader.getHeader(true); // header will be ignored        
-                    Sale sale;            
-                    while ((sale = beanReader.read(Sale.class, Sale.MAPPING, Sale.CSV)) != null) {
-                        final Transaction t = transactionsLookup.remove(sale.getId()); 
-                        if (null == t) {
-                            // this is valid case - sales are reported by charge date so some salles can be from previous month
-                            continue;
-                        }                    
-                        // check if sales report and earnings report contains same data
-                        if (0 != t.getAmount().compareTo(sale.getPrice())) {
-                            throw new IOException("Prices differs in reports earnings: " + t.getAmount() + " sales: " + sale.getPrice());
+        if (deferred.size() > 0) {
+            Log.v("  - transactions not converted while parsed: " + deferred.size());
+            aggregateDeferred(deferred, config, xchg, download, retval, noVat ? null : charges);
+        }
+        if (retval.isEmpty()) {
+            throw new IllegalArgumentException("Transaction list is empty");
+        }
+        if (!noVat) {
+            Log.v("  - charges pending sales data: " + charges.size());
+            matchSalesReports(reports, charges.getIndex(), new SaleHandler() {
+                @Override
+                public void matched(int row, Sale sale) throws IOException {
+                    checkSale(row, charges.getAmount(row), charges.getBuyerCurrency(row), null, sale);
+                    if (charges.isVat(row)) {
+                        synchronized (retval) {
+                            charges.addVat(row, sale.getTaxCollected(), retval);
                         }
-                        if (!t.getBuyerCurrency().equals(sale.getBuyerCurrency())) {
-                            throw new IOException("Currency differs in reports earnings: " + t.getBuyerCurrency() 
-                                    + " sales: " + sale.getBuyerCurrency());
+                    }
+                }
+            }, ingest);
+        }
+        Log.v("Interned values: " + ingest.internPool.getStats());
+        return retval;
+    }
+    
+    // aggregates transactions which were not converted while parsed (using prefetched exchange extended to their dates
+    // and currencies), their charges are added to VAT charges (if not null)
+    private static void aggregateDeferred(TransactionTable deferred, Configuration config, Exchange prefetched,
+            FutureTask<Void> prefetch, TransactionAggregates aggregates, VatCharges charges) throws IOException {
+        deferred.sortByDate();
+        final Date from = deferred.getDate(0);
+        final Date to = deferred.getDate(deferred.size() - 1);
+        final Set<String> currencies = getForeignCurrencies(deferred);
+        Exchange xchg;
+        try {
+            xchg = awaitDownload(prefetched, prefetch, from, to, currencies);
+            if (null == xchg) {
+                xchg = createExchange(config, from, to, currencies);
+                xchg.download();
+            }
+        } catch (java.text.ParseException ex) {
+            throw new IOException("Cannot parse NBP exchange data", ex);
+        } catch (InterruptedException ex) {
+            throw new IOException("Exchange data download interrupted", ex);
+        }
+        // VAT is not known yet, it is added when charges are matched with sales
+        final TransactionAggregates retval = new TransactionAggregates(EU_CURRENCIES, false);
+        for (int row = 0, count = deferred.size(); row < count; row++) {
+            final boolean merchantCurrency = deferred.isMerchantCurrency(row);
+            if (!merchantCurrency) {
+                final Exchange.Timeline timeline = xchg.getTimeline(deferred.getBuyerCurrency(row));
+                final int quote = timeline.find(deferred.getEpochDay(row));
+                deferred.setConversionRate(row, timeline.getAmount(quote), timeline.getRate(quote));
+            }
+            retval.add(deferred, row);
+            if (null != charges && Transaction.Type.CHARGE == deferred.getTransactionType(row) 
+                    && deferred.hasId(row)) {
+                if (!EU_CURRENCIES.contains(deferred.getBuyerCurrency(row))) {
+                    charges.addWithoutVat(deferred.getId(row), deferred.getBuyerCurrency(row), deferred.getAmount(row));
+                } else if (merchantCurrency) {
+                    charges.add(deferred.getId(row), deferred.getBuyerCurrency(row), deferred.getAmount(row));
+                } else {
+                    charges.add(deferred.getId(row), deferred.getBuyerCurrency(row), deferred.getAmount(row), 
+                            deferred.getConversionRate(row), deferred.getConversionRateBaseAmount(row));
+                }
+            }
+        }
+        aggregates.merge(retval);
+    }
+    
+    // parses (or aggregates in summary only mode) all earnings reports, results are in reports order
+    private static EarningsReport[] parseEarningsReports(ReportSource[] earningsReports, final IngestOptions ingest) 
+            throws IOException {
+        final EarningsReport[] parsedReports = new EarningsReport[earningsReports.length];
+        if (ingest.parallelism > 1 && earningsReports.length > 1) {
+            Log.v("Parsing " + earningsReports.length + " earnings reports in parallel (threads: " + ingest.parallelism + ")");
+            final ForkJoinPool pool = new ForkJoinPool(ingest.parallelism);
+            try {
+                final ArrayList<ForkJoinTask<EarningsReport>> tasks = new ArrayList<>();
+                for (final ReportSource source : earningsReports) {
+                    tasks.add(pool.submit(new Callable<EarningsReport>() {
+                        @Override
+                        public EarningsReport call() throws Exception {
+                            return parseEarningsReport(source, ingest);
                         }
-                        if (null != t.getBuyerCountry() && !t.getBuyerCountry().equals(sale.getBuyerCountry())) {
-                            if (!t.getBuyerCurrency().equals(sale.getBuyerCurrency())) {
-                                throw new IOException("Countries differs in reports earnings: " + t.getBuyerCountry() 
-                                        + " sales: " + sale.getBuyerCountry() + " and currency is different");
-                            }
+                    }));
+                }
+                // results are collected in reports order so merged output is same as in sequential run
+                for (int i = 0; i < parsedReports.length; i++) {
+                    parsedReports[i] = join(tasks.get(i));
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        } else {
+            // next report is fetched while current one is parsed
+            try (ReportPipeline pipeline = new ReportPipeline(earningsReports, ingest.prefetchBufferSize, ingest.mmapInput)) {
+                for (int i = 0; i < parsedReports.length; i++) {
+                    parsedReports[i] = parseEarningsReport(pipeline.getSource(i), ingest);
+                }
+            }
+        }
+        return parsedReports;
+    }
+    
+    private static void logEarningsReport(EarningsReport report) {
+        Log.v(String.format("  - total income : %.02f PLN", report.income.floatValue()));
+        Log.v("  - total entries: " + report.entries);                     
+        Log.v(String.format("  - parsing speed: %.0f rows/s", report.rows * 1e9 / Math.max(1, report.parsingTime)));
+    }
+    
+    // matches all charges in table with sales reports and fills VAT data
+    private static void matchSalesReports(ReportsProvider reports, final TransactionTable transactions, 
+            final IngestOptions ingest) throws IOException {
+        final OrderIndex transactionsLookup = new OrderIndex(transactions.size());
+        for (int row = 0, count = transactions.size(); row < count; row++) {
+            if (Transaction.Type.CHARGE == transactions.getTransactionType(row)) {
+                transactionsLookup.put(transactions.getIdBuffer(), transactions.getIdOffset(row),
+                        transactions.getIdLength(row), row);
+            }
+        }
+        matchSalesReports(reports, transactionsLookup, new SaleHandler() {
+            @Override
+            public void matched(int row, Sale sale) throws IOException {
+                updateTransaction(transactions, row, sale);
+            }
+        }, ingest);
+    }
+    
+    // matches all indexed orders with sales reports
+    private static void matchSalesReports(ReportsProvider reports, final OrderIndex transactionsLookup, 
+            final SaleHandler handler, final IngestOptions ingest) throws IOException {
+        final ReportSource[] salesReports = reports.getSalesReports();
+        if (ingest.parallelism > 1 && salesReports.length > 1) {
+            Log.v("Matching " + salesReports.length + " sales reports in parallel (threads: " + ingest.parallelism + ")");
+            final ForkJoinPool pool = new ForkJoinPool(ingest.parallelism);
+            try {
+                final ArrayList<ForkJoinTask<Void>> tasks = new ArrayList<>();
+                for (final ReportSource source : salesReports) {
+                    tasks.add(pool.submit(new Callable<Void>() {
+                        @Override
+                        public Void call() throws Exception {
+                            matchSalesReport(source, transactionsLookup, handler, ingest);
+                            return null;
                         }
-                        // update transaction with extra data
-                        t.setTaxAmount(sale.getTaxCollected());      
+                    }));
+                }
+                for (ForkJoinTask<Void> task : tasks) {
+                    join(task);
+                }
+            } finally {
+                pool.shutdownNow();
+            }
+        } else {
+            try (ReportPipeline pipeline = new ReportPipeline(salesReports, ingest.prefetchBufferSize, ingest.mmapInput)) {
+                for (int i = 0; i < salesReports.length && transactionsLookup.getPendingCount() > 0; i++) {
+                    matchSalesReport(pipeline.getSource(i), transactionsLookup, handler, ingest);
+                }
+            }
+        }
+        if (transactionsLookup.getPendingCount() > 0) {
+            throw new IOException("Some transaction were not matched with transaction from sales reports");
+        }
+    }
+    
+    // passes matched sales to handler, safe to run concurrently for different reports since every row is claimed 
+    // from index (and handled) only once
+    private static void matchSalesReport(ReportSource source, OrderIndex index, SaleHandler handler, 
+            IngestOptions ingest) throws IOException {
+        Log.v("Loading sales report CSV " + source.getName());
+        if (ingest.legacyReader) {
+            matchSalesReportLegacy(source, index, handler, ingest);
+            return;
+        }
+        try(SalesCsvParser parser = new SalesCsvParser(openTokenizer(source, ingest), index, ingest.internPool)) {
+            parser.skipHeader();
+            Sale sale;
+            int matched = 0;
+            while ((sale = parser.read()) != null) {
+                handler.matched(parser.getMatchedRow(), sale);
+                matched++;
+            }
+            Log.v("  - " + source.getName() + " matched: " + matched + " skipped: " + parser.getSkippedCount() 
+                    + (index.getPendingCount() > 0 ? "" : " (all transactions matched, rest of report skipped)"));
+        }
+    }
+    
+    // Super CSV based sales report reader, kept as reference for speed and correctness comparison
+    private static void matchSalesReportLegacy(ReportSource source, OrderIndex index, SaleHandler handler, 
+            IngestOptions ingest) throws IOException {
+        try(ICsvBeanReader beanReader = new CsvBeanReader(openReader(source), CsvPreference.STANDARD_PREFERENCE)) {
+            /* final String[] header = */ beanReader.getHeader(true); // header will be ignored        
+            final CellProcessor[] processors = Sale.csvProcessors(ingest.internPool);
+            Sale sale;            
+            while ((sale = beanReader.read(Sale.class, Sale.MAPPING, processors)) != null) {
+                final int row = index.claim(sale.getId()); 
+                if (OrderIndex.NOT_FOUND == row) {
+                    // this is valid case - sales are reported by charge date so some salles can be from previous month
+                    continue;
+                }                    
+                handler.matched(row, sale);
+            }
+        }
+    }
+    
+    private static void updateTransaction(TransactionTable transactions, int row, Sale sale) throws IOException {
+        checkSale(row, transactions.getAmount(row), transactions.getBuyerCurrency(row), 
+                transactions.getBuyerCountry(row), sale);
+        // update transaction with extra data
+        transactions.setTaxAmount(row, sale.getTaxCollected());      
+    }
+    
+    // check if sales report and earnings report contains same data (country is not checked if null)
+    private static void checkSale(int row, BigDecimal amount, String currency, String country, Sale sale) 
+            throws IOException {
+        if (0 != amount.compareTo(sale.getPrice())) {
+            throw new IOException("Prices differs in reports earnings: " + amount + " sales: " + sale.getPrice());
+        }
+        if (!currency.equals(sale.getBuyerCurrency())) {
+            throw new IOException("Currency differs in reports earnings: " + currency 
+                    + " sales: " + sale.getBuyerCurrency());
+        }
+        if (null != country && !country.equals(sale.getBuyerCountry())) {
+            if (!currency.equals(sale.getBuyerCurrency())) {
+                throw new IOException("Countries differs in reports earnings: " + country 
+                        + " sales: " + sale.getBuyerCountry() + " and currency is different");
+            }
+        }
+    }
+    
+    private static EarningsReport parseEarningsReport(ReportSource source, IngestOptions ingest) throws IOException {
+        final EarningsReport report = ingest.aggregate ? new AggregatedReport(ingest.exchange, ingest.vat) 
+                : new EarningsReport();
+        final long startTime = System.nanoTime();
+        if (ingest.legacyReader) {
+            parseEarningsReportLegacy(source, report, ingest.internPool);
+        } else {
+            try(EarningsCsvParser parser = new EarningsCsvParser(openTokenizer(source, ingest), ingest.internPool)) {
+                parser.skipHeader();
+                Transaction t;
+                while ((t = parser.read()) != null) {
+                    report.add(t);
+                }
+                report.rows = parser.getRowNumber() - 1;
+            }
+        }
+        report.parsingTime = System.nanoTime() - startTime;
+        return report;
+    }
+    
+    // Super CSV based parser, kept as reference for speed and correctness comparison
+    private static void parseEarningsReportLegacy(ReportSource source, EarningsReport report, InternPool pool) 
+            throws IOException {
+        try(ICsvBeanReader beanReader = new CsvBeanReader(openReader(source), CsvPreference.STANDARD_PREFERENCE)) {                
+            /* final String[] header = */ beanReader.getHeader(true); // header will be ignored                                
+            final CellProcessor[] processors = Transaction.csvProcessors(pool);
+            Transaction t;            
+            while ((t = beanReader.read(Transaction.class, Transaction.MAPPING, processors)) != null) {
+                if (null == t.getTransactionType()) {
+                    // tax deduction reports in some cases contains invalid rows with 0 payout, so skip it
+                    if (BigDecimal.ZERO.compareTo(t.getPayout()) == 0) {
+                        continue;
                     }
+                    throw new IOException("Invalid row " + beanReader.getRowNumber() 
+                            + " - transaction don't have associated type and have value\n" + beanReader.getUntokenizedRow());
                 }
+                if (null == t.getId()) {
+                    if (Transaction.Type.TAX != t.getTransactionType()) {
+                        throw new IOException("Invalid row " + beanReader.getRowNumber() 
+                                + " - non-tax deduction transaction without id\n" + beanReader.getUntokenizedRow());
+                    }
+                }
+                report.add(t);   
+            }                               
+            report.rows = beanReader.getRowNumber() - 1;
+        }
+    }
+    
+    private static <T> T join(ForkJoinTask<T> task) throws IOException {
+        try {
+            return task.get();
+        } catch (InterruptedException ex) {
+            throw new IOException("Reports parsing interrupted", ex);
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof IOException) {
+                throw (IOException) ex.getCause();
             }
-            if (!transactionsLookup.isEmpty()) {
-                throw new IOException("Some transaction were not matched with transaction from sales reports");
+            if (ex.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) ex.getCause();
             }
-        }        
-        return retval; 
-    }    
+            throw new IOException("Reports parsing failed", ex.getCause());
+        }
+    }
+    
+    private static Exchange createExchange(Configuration config, Date from, Date to, Set<String> currencies) 
+            throws IOException {
+        final ExchangeRateSource source;
+        final String archive = config.getProperty("nbp.archive");
+        if (null != archive) {
+            source = new NbpArchiveSource(new File(archive));
+        } else {
+            final NbpHttpSource http = new NbpHttpSource(config.getProperty("nbp.url", NbpHttpSource.DEFAULT_URL), 
+                    DiskCache.open(config, "nbp"));
+            http.setDirectoryTtl(config.getInt("nbp.directory.ttl", 60) * 60L * 1000L);
+            final String apiUrl = config.getProperty("nbp.api.url");
+            if (null != apiUrl) {
+                http.setApiUrl(apiUrl.trim().isEmpty() ? null : apiUrl.trim());
+            }
+            source = http;
+        }
+        final Exchange xchg = new Exchange(from, to, source);
+        xchg.setCurrencies(currencies);
+        xchg.setConcurrency(Math.max(1, config.getInt("nbp.download.concurrency", 4)));
+        return xchg;
+    }
+    
+    private static DateTime getReportsMonth(ReportsProvider reports) {
+        final DateTime month = new DateTime(reports.getDate());
+        return new DateTime(month.getYear(), month.getMonthOfYear(), 1, 0, 0, DateTimeZone.UTC);
+    }
+    
+    private static FutureTask<Void> startDownload(final Exchange xchg) {
+        final FutureTask<Void> task = new FutureTask<>(new Callable<Void>() {
+            @Override
+            public Void call() throws Exception {
+                xchg.download();
+                return null;
+            }
+        });
+        final Thread thread = new Thread(task, "exchange-prefetch");
+        thread.setDaemon(true);
+        thread.start();
+        return task;
+    }
+    
+    // prefetched exchange extended to transactions dates and B tables of their currencies (only missing data is
+    // downloaded) or null if its download failed
+    private static Exchange awaitDownload(Exchange xchg, FutureTask<Void> download, Date from, Date to, 
+            Set<String> currencies) throws InterruptedException, IOException, java.text.ParseException {
+        try {
+            download.get();
+        } catch (ExecutionException ex) {
+            Log.v("Exchange data prefetch failed (" + ex.getCause() + ")");
+            return null;
+        }
+        if (!xchg.covers(from, to)) {
+            Log.v("Transactions dates are out of prefetched exchange date range, downloading missing days");
+            xchg.download(from, to);
+        }
+        xchg.downloadMissing(currencies);
+        return xchg;
+    }
+    
+    // buyer currencies of transactions which need conversion
+    private static Set<String> getForeignCurrencies(TransactionTable transactions) {
+        final HashSet<String> currencies = new HashSet<>();
+        for (int row = 0, count = transactions.size(); row < count; row++) {
+            if (!transactions.isMerchantCurrency(row)) {
+                currencies.add(transactions.getBuyerCurrency(row));
+            }
+        }
+        return currencies;
+    }
+    
+    private static void logAggregates(TransactionAggregates aggregates) {
+        Log.v("Transactions by SKU:");
+        for (Map.Entry<String, TransactionAggregates.SkuStats> e : aggregates.getSkuStats().entrySet()) {
+            Log.v("  - SKU: " + e.getKey());
+            Log.v("    - sells  : " + e.getValue().getSells());
+            Log.v("    - refunds: " + e.getValue().getRefunds());            
+        }
+        Log.v(String.format("Tax deduction: %.02f PLN", aggregates.getTaxDeduction().negate().toDouble()));
+        Log.v(String.format("Total income : %.02f PLN", aggregates.getIncome().toDouble()));
+    }
+    
+    private static Reader openReader(ReportSource source) throws IOException {
+        return new InputStreamReader(source.open(), StandardCharsets.UTF_8);
+    }
     
-    private static void createTransactionsSheet(WorkbookStyle wb, List<Transaction> transactions, boolean ignoreVat) {
+    private static CsvTokenizer openTokenizer(ReportSource source, IngestOptions ingest) throws IOException {
+        if (ingest.mmapInput) {
+            final FileChannel channel = source.openChannel();
+            if (null != channel) {
+                return new CsvTokenizer(channel);
+            }
+        }
+        return new CsvTokenizer(source.open());
+    }
+    
+    // reports parsing settings (shared by all parsing tasks)
+    private static class IngestOptions {
+        final boolean legacyReader;
+        final boolean mmapInput;
+        final int parallelism;
+        // bytes of reports data fetched ahead in sequential mode (0 disables prefetching)
+        final long prefetchBufferSize;
+        // set in summary only mode, transactions are aggregated while reports are parsed (converted with exchange
+        // rates or with reports rates if exchange is null)
+        boolean aggregate;
+        Exchange exchange;
+        boolean vat;
+        // shared by all reports parsed during single ingest
+        final InternPool internPool = new InternPool();
+        
+        IngestOptions(Configuration config) {
+            legacyReader = config.getBoolean("process.legacy.csv.reader", false);
+            mmapInput = config.getBoolean("process.mmap.input", false);
+            parallelism = config.getBoolean("process.parallel.ingest", false) ? 
+                    config.getInt("process.parallel.threads", Runtime.getRuntime().availableProcessors()) : 1;
+            prefetchBufferSize = config.getInt("process.prefetch.buffer.size", 16) * 1024L * 1024L;
+        }
+    }
+    
+    // single earnings report parsing result, rows are appended to report table chunk as parsed (so parsed beans are
+    // released right away) and chunks are merged in reports order
+    private static class EarningsReport {
+        final TransactionTable transactions = new TransactionTable();
+        BigDecimal income = BigDecimal.ZERO;
+        boolean taxOnly = true;
+        int entries;
+        int rows;
+        long parsingTime;
+        
+        void add(Transaction t) throws IOException {
+            income = income.add(t.getPayout());
+            if (Transaction.Type.TAX != t.getTransactionType()) {
+                taxOnly = false;
+            }                    
+            entries++;
+            store(t);
+        }
+        
+        void store(Transaction t) throws IOException {
+            transactions.add(t);
+        }
+        
+        void addTo(TransactionTable table) {
+            table.addAll(transactions);
+        }
+    }
+    
+    // single earnings report aggregated while parsed, only charges are kept in compact form (to be matched with 
+    // sales), transactions which cannot be converted yet (exchange is not downloaded, date is out of its range or 
+    // currency is not quoted in A tables) are stored in report table (converted after parsing)
+    private static class AggregatedReport extends EarningsReport {
+        final Exchange exchange;
+        final boolean vat;
+        final TransactionAggregates aggregates;
+        final VatCharges charges = new VatCharges();
+        
+        AggregatedReport(Exchange exchange, boolean vat) {
+            this.exchange = exchange;
+            this.vat = vat;
+            this.aggregates = new TransactionAggregates(EU_CURRENCIES, vat);
+        }
+        
+        @Override
+        void store(Transaction t) throws IOException {
+            // all charges are checked with sales, VAT is collected only from EU ones
+            final boolean charge = vat && Transaction.Type.CHARGE == t.getTransactionType() && null != t.getId();
+            final boolean vatCharge = charge && EU_CURRENCIES.contains(t.getBuyerCurrency());
+            if (t.getBuyerCurrency().equals(t.getMerchantCurrency())) {
+                aggregates.add(t, 0, 1);
+                if (vatCharge) {
+                    charges.add(t.getId(), t.getBuyerCurrency(), t.getAmount());
+                }
+            } else if (null == exchange) {
+                // converted with earnings report rate
+                aggregates.add(t);
+                if (vatCharge) {
+                    charges.add(t.getId(), t.getBuyerCurrency(), t.getAmount(), t.getConversionRate(), 
+                            t.getConversionRateBaseAmount());
+                }
+            } else if (exchange.isDownloaded() && exchange.covers(t.getDate(), t.getDate()) 
+                    && exchange.isQuoted(t.getBuyerCurrency())) {
+                final Exchange.Timeline timeline = exchange.getTimeline(t.getBuyerCurrency());
+                final int quote = timeline.find((int) Math.floorDiv(t.getDate().getTime(), MILLIS_PER_DAY));
+                aggregates.add(t, timeline.getRate(quote), timeline.getAmount(quote));
+                if (vatCharge) {
+                    charges.add(t.getId(), t.getBuyerCurrency(), t.getAmount(), timeline.getRate(quote), 
+                            timeline.getAmount(quote));
+                }
+            } else {
+                transactions.add(t);
+                return;
+            }
+            if (charge && !vatCharge) {
+                charges.addWithoutVat(t.getId(), t.getBuyerCurrency(), t.getAmount());
+            }
+        }
+    }
+    
+    // receives sales matched with indexed orders (called concurrently for different rows)
+    private interface SaleHandler {
+        void matched(int row, Sale sale) throws IOException;
+    }
+    
+    private static void createTransactionsSheet(WorkbookStyle wb, TransactionTable transactions, boolean ignoreVat) {
         Log.v("Creating transactions sheet");
         final Sheet sheet = wb.getWorkbook().createSheet("Tranzakcje");
         final CellStyle centeredCellStyle = wb.cloneCellStyle(CellStyleType.BASE);
@@ -402,29 +910,34 @@ public class Main {
         wb.appendCellWithStyle(row, "PLN", CellStyleType.HEADER);
         wb.appendCellWithStyle(row, "PLN(NBP)", CellStyleType.HEADER);
         wb.appendCellWithStyle(row, "Różnica", CellStyleType.HEADER);                
-        for (Transaction t : transactions) {
-            // skip tax deduction            
-            if (null == t.getId()) {
-            	continue;
-            }            
-            row = sheet.createRow(rowNbr++);
-            wb.appendCellWithStyle(row, t.getId(), centeredCellStyle);
-            wb.appendCellWithStyle(row, t.getDate(), CellStyleType.DATE);
-            wb.appendCellWithStyle(row, t.getTransactionType().toString(), CellStyleType.BASE);
-            wb.appendCellWithStyle(row, t.getProductName(), CellStyleType.BASE);
-            wb.appendCellWithStyle(row, t.getBuyerCountry(), centeredCellStyle);
-            wb.appendCellWithStyle(row, t.getBuyerCurrency(), centeredCellStyle);
-            wb.appendCellWithStyle(row, t.getAmount(), perCurrecyAmountFormat.get(t.getBuyerCurrency()));
-            if (!ignoreVat) {
-                if (Transaction.Type.CHARGE == t.getTransactionType() && EU_CURRENCIES.contains(t.getBuyerCurrency())) {
-                    wb.appendCellWithStyle(row, t.getTaxAmount(), perCurrecyAmountFormat.get(t.getBuyerCurrency()));                    
-                } else {
-                    wb.appendCellWithStyle(row, "", CellStyleType.BASE);
+        // rows are sorted by date, so date cell value is created once per day
+        for (int day = 0, days = transactions.getDaysCount(); day < days; day++) {
+            final Date date = transactions.getDate(transactions.getDayStart(day));
+            for (int t = transactions.getDayStart(day), end = transactions.getDayEnd(day); t < end; t++) {
+                // skip tax deduction            
+                if (!transactions.hasId(t)) {
+                	continue;
+                }            
+                final String buyerCurrency = transactions.getBuyerCurrency(t);
+                row = sheet.createRow(rowNbr++);
+                wb.appendCellWithStyle(row, transactions.getId(t), centeredCellStyle);
+                wb.appendCellWithStyle(row, date, CellStyleType.DATE);
+                wb.appendCellWithStyle(row, transactions.getTransactionType(t).toString(), CellStyleType.BASE);
+                wb.appendCellWithStyle(row, transactions.getProductName(t), CellStyleType.BASE);
+                wb.appendCellWithStyle(row, transactions.getBuyerCountry(t), centeredCellStyle);
+                wb.appendCellWithStyle(row, buyerCurrency, centeredCellStyle);
+                wb.appendCellWithStyle(row, transactions.getAmount(t), perCurrecyAmountFormat.get(buyerCurrency));
+                if (!ignoreVat) {
+                    if (Transaction.Type.CHARGE == transactions.getTransactionType(t) && EU_CURRENCIES.contains(buyerCurrency)) {
+                        wb.appendCellWithStyle(row, transactions.getTaxAmount(t), perCurrecyAmountFormat.get(buyerCurrency));                    
+                    } else {
+                        wb.appendCellWithStyle(row, "", CellStyleType.BASE);
+                    }
                 }
+                wb.appendCellWithStyle(row, transactions.getPayout(t), CellStyleType.AMOUNT);
+                wb.appendCellWithStyle(row, transactions.getAmountConverted(t), CellStyleType.AMOUNT);
+                wb.appendCellWithStyle(row, transactions.getSpread(t), CellStyleType.AMOUNT);
             }
-            wb.appendCellWithStyle(row, t.getPayout(), CellStyleType.AMOUNT);
-            wb.appendCellWithStyle(row, t.getAmountConverted(), CellStyleType.AMOUNT);
-            wb.appendCellWithStyle(row, t.getSpread(), CellStyleType.AMOUNT);
         }
         sheet.setRepeatingRows(CellRangeAddress.valueOf("1"));
         for (int i = 0; i <= (ignoreVat ? 9 : 10); i++) {
@@ -432,10 +945,9 @@ public class Main {
         }
     }
     
-    private static void createPivotSheet(WorkbookStyle wb, List<Transaction> transactions) {
+    private static void createPivotSheet(WorkbookStyle wb, MonthlyPivotReport pivot) {
         Log.v("Creating pivot sheet");
         final Sheet sheet = wb.getWorkbook().createSheet("Zestawienie");
-        final MonthlyPivotReport pivot = new MonthlyPivotReport(transactions);
         final Date[] days = pivot.getDays();
         final String[] currencies = pivot.getCurrencies();
         int rowNbr = 0;
@@ -547,28 +1059,28 @@ public class Main {
             // pivot data
             for (String currency : currencies) {
                 final Summary summary = pivot.getDayCurrencySummary(date, currency);
-                if (BigDecimal.ZERO.equals(summary.total)) {
+                if (summary.isEmpty()) {
                     wb.appendCellWithStyle(total, "", amountTotalNormalStyle);
                     wb.appendCellWithStyle(payout, "", amountMerchantCurrencyStyle);
                     wb.appendCellWithStyle(converted, "", amountMerchantCurrencyStyle);
                     wb.appendCellWithStyle(spread, "", amountSpreadStyle);
                 } else {
                     if (CellStyleType.AMOUNT_SHORT == perCurrecyAmountFormat.get(currency)) {
-                        wb.appendCellWithStyle(total, summary.total, amountTotalShortStyle);       
+                        wb.appendMoneyCellWithStyle(total, summary.total, amountTotalShortStyle);       
                     } else {
-                        wb.appendCellWithStyle(total, summary.total, amountTotalNormalStyle);
+                        wb.appendMoneyCellWithStyle(total, summary.total, amountTotalNormalStyle);
                     }
-                    wb.appendCellWithStyle(payout, summary.totalPayout, amountMerchantCurrencyStyle);
-                    wb.appendCellWithStyle(converted, summary.totalConverted, amountMerchantCurrencyStyle);
-                    wb.appendCellWithStyle(spread, summary.totalConverted.subtract(summary.totalPayout), amountSpreadStyle);
+                    wb.appendMoneyCellWithStyle(payout, summary.totalPayout, amountMerchantCurrencyStyle);
+                    wb.appendMoneyCellWithStyle(converted, summary.totalConverted, amountMerchantCurrencyStyle);
+                    wb.appendMoneyCellWithStyle(spread, summary.totalConverted.subtract(summary.totalPayout), amountSpreadStyle);
                 }
             }
             final Summary summary = pivot.getDaySummary(date);
             // total column
             wb.appendCellWithStyle(total, "", resultTotalStyle);        
-            wb.appendCellWithStyle(payout, summary.totalPayout, resultMerchantCurrencyStyle);
-            wb.appendCellWithStyle(converted, summary.totalConverted, resultMerchantCurrencyStyle);
-            wb.appendCellWithStyle(spread, summary.totalConverted.subtract(summary.totalPayout), resultSpreadStyle);            
+            wb.appendMoneyCellWithStyle(payout, summary.totalPayout, resultMerchantCurrencyStyle);
+            wb.appendMoneyCellWithStyle(converted, summary.totalConverted, resultMerchantCurrencyStyle);
+            wb.appendMoneyCellWithStyle(spread, summary.totalConverted.subtract(summary.totalPayout), resultSpreadStyle);            
         }
         sheet.autoSizeColumn(0);  
         sheet.autoSizeColumn(1);  
@@ -595,13 +1107,13 @@ public class Main {
         for (String currency : currencies) {
             final Summary summary = pivot.getCurrencySummary(currency);
             if (CellStyleType.AMOUNT_SHORT == perCurrecyAmountFormat.get(currency)) {
-                wb.appendCellWithStyle(total, summary.total, summaryTotalShortStyle);       
+                wb.appendMoneyCellWithStyle(total, summary.total, summaryTotalShortStyle);       
             } else {
-                wb.appendCellWithStyle(total, summary.total, summaryTotalNormalStyle);
+                wb.appendMoneyCellWithStyle(total, summary.total, summaryTotalNormalStyle);
             }
-            wb.appendCellWithStyle(payout, summary.totalPayout, summaryStyle);
-            wb.appendCellWithStyle(converted, summary.totalConverted, summaryStyle);
-            wb.appendCellWithStyle(spread, summary.totalConverted.subtract(summary.totalPayout), summaryStyle);
+            wb.appendMoneyCellWithStyle(payout, summary.totalPayout, summaryStyle);
+            wb.appendMoneyCellWithStyle(converted, summary.totalConverted, summaryStyle);
+            wb.appendMoneyCellWithStyle(spread, summary.totalConverted.subtract(summary.totalPayout), summaryStyle);
         }
         
         // total montly summary 
@@ -613,49 +1125,36 @@ public class Main {
         
         final Summary summary = pivot.getSummary();
         wb.appendCellWithStyle(total, "", summaryResultTotalStyle);
-        wb.appendCellWithStyle(payout, summary.totalPayout, summaryResultStyle);
-        wb.appendCellWithStyle(converted, summary.totalConverted, summaryResultStyle);
-        wb.appendCellWithStyle(spread, summary.totalConverted.subtract(summary.totalPayout), summaryResultStyle);
+        wb.appendMoneyCellWithStyle(payout, summary.totalPayout, summaryResultStyle);
+        wb.appendMoneyCellWithStyle(converted, summary.totalConverted, summaryResultStyle);
+        wb.appendMoneyCellWithStyle(spread, summary.totalConverted.subtract(summary.totalPayout), summaryResultStyle);
         
         for (int i = 2; i < 2 + currencies.length + 1; i++) {
             sheet.autoSizeColumn(i);            
         }
     }    
     
-    private static void createVatSheet(WorkbookStyle wb, List<Transaction> transactions) {
+    private static void createVatSheet(WorkbookStyle wb, TransactionAggregates aggregates) {
         Log.v("Creating VAT sheet");
         final Sheet sheet = wb.getWorkbook().createSheet("VAT");
-        final TreeMap<String, BigDecimal[]> vatCollected = new TreeMap<>();        
-        
-        for (Transaction t : transactions) {
-            if (Transaction.Type.CHARGE == t.getTransactionType() && EU_CURRENCIES.contains(t.getBuyerCurrency())) {
-                BigDecimal[] vat = vatCollected.get(t.getBuyerCurrency());
-                if (null == vat) {
-                    vat = new BigDecimal[] { BigDecimal.ZERO, BigDecimal.ZERO };
-                    vatCollected.put(t.getBuyerCurrency(), vat);
-                }
-                vat[0] = vat[0].add(t.getTaxAmount());
-                vat[1] = vat[1].add(t.getTaxAmountConverted());
-            }
-        }
         
         final CellStyle centeredCellStyle = wb.cloneCellStyle(CellStyleType.BASE);
         centeredCellStyle.setAlignment(CellStyle.ALIGN_CENTER);
         
         int rowNbr = 0;
         Row row;
-        BigDecimal vatTotal = BigDecimal.ZERO;
+        final Money.Sum vatTotal = new Money.Sum();
         
         row = sheet.createRow(rowNbr++);
         wb.appendCellWithStyle(row, "Waluta", CellStyleType.HEADER);
         wb.appendCellWithStyle(row, "VAT", CellStyleType.HEADER);
         wb.appendCellWithStyle(row, "VAT(PLN)", CellStyleType.HEADER);
-        for (Map.Entry<String, BigDecimal[]> e : vatCollected.entrySet()) {
+        for (Map.Entry<String, Money.Sum[]> e : aggregates.getVatCollected().entrySet()) {
             row = sheet.createRow(rowNbr++);
             wb.appendCellWithStyle(row, e.getKey(), centeredCellStyle);
-            wb.appendCellWithStyle(row, e.getValue()[0], perCurrecyAmountFormat.get(e.getKey()));
-            wb.appendCellWithStyle(row, e.getValue()[1], CellStyleType.AMOUNT);
-            vatTotal = vatTotal.add(e.getValue()[1]);
+            wb.appendMoneyCellWithStyle(row, e.getValue()[0], perCurrecyAmountFormat.get(e.getKey()));
+            wb.appendMoneyCellWithStyle(row, e.getValue()[1], CellStyleType.AMOUNT);
+            vatTotal.add(e.getValue()[1]);
         }
         final CellStyle emptyWithBorder = wb.cloneCellStyle(CellStyleType.BASE);
         final CellStyle amountWithBorder = wb.cloneCellStyle(CellStyleType.AMOUNT);
@@ -666,39 +1165,18 @@ public class Main {
         wb.appendCellWithStyle(row, "Łączny VAT(PLN)", emptyWithBorder);
         wb.appendCellWithStyle(row, "", emptyWithBorder);
         sheet.addMergedRegion(new CellRangeAddress(rowNbr + 0, rowNbr + 0, 0, 1));
-        wb.appendCellWithStyle(row, vatTotal, amountWithBorder);
+        wb.appendMoneyCellWithStyle(row, vatTotal, amountWithBorder);
         
         sheet.autoSizeColumn(0);
         sheet.autoSizeColumn(1);
         sheet.autoSizeColumn(3);
     }    
     
-    private static void createSummarySheet(WorkbookStyle wb, List<Transaction> transactions, boolean noVat) {
+    private static void createSummarySheet(WorkbookStyle wb, TransactionAggregates aggregates, boolean noVat) {
         Log.v("Creating summary sheet");
         final Sheet sheet = wb.getWorkbook().createSheet("Podsumowanie");
-        BigDecimal totalPayout = BigDecimal.ZERO;
-        BigDecimal totalPayoutFromEU = BigDecimal.ZERO;
-        BigDecimal totalConverted = BigDecimal.ZERO;
-        BigDecimal totalTaxDeduction = BigDecimal.ZERO;
-        BigDecimal totalVat = BigDecimal.ZERO;
-        
-        for (Transaction t : transactions) {            
-            totalPayout = totalPayout.add(t.getPayout());
-            if (null == t.getId()) {
-                totalTaxDeduction = totalTaxDeduction.add(t.getPayout());
-                totalConverted = totalConverted.add(t.getPayout());     
-            } else {                
-                if (EU_CURRENCIES.contains(t.getBuyerCurrency())) {
-                    totalPayoutFromEU = totalPayoutFromEU.add(t.getPayout());
-                    if (!noVat) {
-                        if (Transaction.Type.CHARGE == t.getTransactionType()) {
-                            totalVat = totalVat.add(t.getTaxAmountConverted());
-                        }
-                    }
-                }
-                totalConverted = totalConverted.add(t.getAmountConverted());                
-            }
-        }
+        final Money.Sum totalPayout = aggregates.getTotalPayout();
+        final Money.Sum totalConverted = aggregates.getTotalConverted();
         
         final CellStyle labelStyle = wb.cloneCellStyle(CellStyleType.HEADER);
         final CellStyle amountStyle = wb.cloneCellStyle(CellStyleType.AMOUNT);
@@ -711,21 +1189,21 @@ public class Main {
         
         row = sheet.createRow(rowNbr++);
         wb.appendCellWithStyle(row, "Łączny dochód", labelStyle);
-        wb.appendCellWithStyle(row, totalPayout, amountStyle);
+        wb.appendMoneyCellWithStyle(row, totalPayout, amountStyle);
         row = sheet.createRow(rowNbr++);
         wb.appendCellWithStyle(row, "  w tym z krajów EU", labelStyle);
-        wb.appendCellWithStyle(row, totalPayoutFromEU, amountStyle);
+        wb.appendMoneyCellWithStyle(row, aggregates.getTotalPayoutFromEU(), amountStyle);
         if (!noVat) {
             row = sheet.createRow(rowNbr++);
             wb.appendCellWithStyle(row, "  VAT", labelStyle);
-            wb.appendCellWithStyle(row, totalVat, amountStyle);
+            wb.appendMoneyCellWithStyle(row, aggregates.getTotalVat(), amountStyle);
         }
         row = sheet.createRow(rowNbr++);
         wb.appendCellWithStyle(row, "Łączna różnica kursowa", labelStyle);
-        wb.appendCellWithStyle(row, totalConverted.subtract(totalPayout), amountStyle);
+        wb.appendMoneyCellWithStyle(row, totalConverted.subtract(totalPayout), amountStyle);
         row = sheet.createRow(rowNbr++);
         wb.appendCellWithStyle(row, "Miedzynarodowe podatki", labelStyle);
-        wb.appendCellWithStyle(row, totalTaxDeduction.negate(), amountStyle);
+        wb.appendMoneyCellWithStyle(row, aggregates.getTotalTaxDeduction().negate(), amountStyle);
         sheet.autoSizeColumn(0);
         sheet.autoSizeColumn(1);
     }    
@@ -736,6 +1214,7 @@ public class Main {
     private static final SimpleDateFormat DATE_FORMAT = new SimpleDateFormat("yyyyMM");
     private static final HashSet<String> EU_CURRENCIES = new HashSet<>(Arrays.asList(
             "EUR", "GBP", "HUF", "HRK", "DKK", "SEK", "BGN", "CZK", "RON", "PLN"));
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
     
     private static final String CFG_TEMPLATE = 
             "\n\n\n" +
@@ -766,6 +1245,54 @@ public class Main {
             "# see direct report URI in format gs://<bucket>/sales/)\n" + 
             "gcs.bucket = <bucket id>\n" + 
             "\n" + 
+            "# Maximum number of concurrent GCS requests (reports listing and download),\n" + 
+            "# reports are downloaded in background while already fetched ones are parsed\n" + 
+            "# (default 4)\n" + 
+            "gcs.download.concurrency = <requests count>\n" + 
+            "\n" + 
+            "# Reports larger than chunk size (in MB, default 16) are downloaded in parallel\n" + 
+            "# ranges of this size, every failed download (or range) is retried up to given\n" + 
+            "# number of times (default 3)\n" + 
+            "gcs.download.chunk.size = <size in MB>\n" + 
+            "gcs.download.retries = <attempts count>\n" + 
+            "\n" + 
+            "# Local cache of downloaded (unpacked) reports, reports are identified by\n" + 
+            "# object name, generation and checksum so changed report is always downloaded\n" + 
+            "# again. Cache is enabled by default (stored in .isp-cache folder in user home\n" + 
+            "# directory), least recently used reports are removed when cache size (in MB,\n" + 
+            "# default 2048) is exceeded.\n" + 
+            "cache.enabled = <true|false>\n" + 
+            "cache.dir = <directory path>\n" + 
+            "cache.max.size = <size in MB>\n" + 
+            "\n" + 
+            "# NBP exchange tables are cached as well, also in local mode (in nbp sub-folder\n" + 
+            "# of cache, with same size limit). Tables never change but tables directory is\n" + 
+            "# refreshed with conditional request when it is older than given number of\n" + 
+            "# minutes (default 60)\n" + 
+            "nbp.directory.ttl = <minutes>\n" + 
+            "\n" + 
+            "# Maximum number of NBP tables downloaded concurrently (default 4)\n" + 
+            "nbp.download.concurrency = <requests count>\n" + 
+            "\n" + 
+            "# NBP exchange tables source, tables are downloaded from NBP web site (or other\n" + 
+            "# server with the same layout, e.g. NbpStubServer, if URL is given) or read from\n" + 
+            "# local directory or zip with tables XML files (offline mode, dir.txt is optional)\n" + 
+            "nbp.url = <URL of kursy/xml directory>\n" + 
+            "nbp.archive = <directory or zip file path>\n" + 
+            "\n" + 
+            "# Tables of whole date range are downloaded with few NBP API requests (at most 93\n" + 
+            "# days each, rates are quoted per single currency unit), single tables listed\n" + 
+            "# in year directories are downloaded if API is not available. API is used by\n" + 
+            "# default only with NBP web site, empty value disables it\n" + 
+            "nbp.api.url = <URL of NBP API>\n" + 
+            "\n" + 
+            "# A tables of reports month (extended by margin in days, default 2) are\n" + 
+            "# downloaded while reports are parsed (enabled by default). After parsing only\n" + 
+            "# tables of transactions days out of that range and B tables of transactions\n" + 
+            "# currencies not quoted in A tables are downloaded\n" + 
+            "nbp.prefetch = <true|false>\n" + 
+            "nbp.prefetch.margin = <days>\n" + 
+            "\n" + 
             "\n" + 
             "# Basic XLSX style properties\n" + 
             "\n" + 
@@ -796,6 +1323,33 @@ public class Main {
             "# well\n" +
             "process.tax.only.reports = <true|false>\n" + 
             "\n" + 
+            "# Parse earnings reports files concurrently (output is same as in sequential\n" + 
+            "# mode), by default number of threads is equal to number of CPU cores\n" + 
+            "process.parallel.ingest = <true|false>\n" + 
+            "process.parallel.threads = <threads count>\n" + 
+            "\n" + 
+            "# Use generic Super CSV reader instead of specialized earnings reports parser\n" + 
+            "# (much slower, only for results and speed comparison)\n" + 
+            "process.legacy.csv.reader = <true|false>\n" + 
+            "\n" + 
+            "# Read local uncompressed CSV reports using memory mapped files instead of\n" + 
+            "# streams (compressed and GCS reports are always streamed)\n" + 
+            "process.mmap.input = <true|false>\n" + 
+            "\n" + 
+            "# Aggregate transactions while reports are parsed instead of keeping them in\n" + 
+            "# memory (only currency and amount of charges and rate of EU ones are kept until\n" + 
+            "# matched with sales reports), output contains only summary sheets (no\n" + 
+            "# transactions sheet). A tables of reports month (extended by nbp.prefetch.margin\n" + 
+            "# days) are downloaded while reports are parsed, transactions parsed before they\n" + 
+            "# are available, out of that range or in currencies quoted only in B tables are\n" + 
+            "# converted after parsing. Reports rates are used if xchange sheet is disabled.\n" + 
+            "process.summary.only = <true|false>\n" + 
+            "\n" + 
+            "# Size of buffer (in MB) for reports data fetched (downloaded, unpacked) in\n" + 
+            "# background while previous report is parsed, 0 disables prefetching (only\n" + 
+            "# used when reports are not parsed in parallel), default is 16\n" + 
+            "process.prefetch.buffer.size = <size in MB>\n" + 
+            "\n" + 
             "# XLSX sheets generation control (not that xchange sheet need online NBP data\n" + 
             "# so when set to true internet connection is required in order to generate \n" + 
             "# output even io local mode).\n" + 
@@ -0,0 +1,212 @@
+package com.bytestorm.isp;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Fixed-point money arithmetic on longs holding amounts in micro units (6 fraction digits). Values which cannot be
+ * stored exactly this way (more fraction digits or out of range, e.g. sub-cent amount converted with rate quoted for
+ * 100 units) are reported as {@link #INEXACT} and have to be processed as {@link BigDecimal}, so results are always
+ * same as of exact decimal arithmetic. Sums are accumulated with {@link Sum}.
+ */
+public final class Money {
+    // number of fraction digits
+    public static final int SCALE = 6;
+    public static final long ZERO = 0;
+    // marker of value which cannot be stored in micro units exactly
+    public static final long INEXACT = Long.MAX_VALUE;
+
+    /**
+     * Exact sum of money values. Values in micro units are added as longs, other values (and sum overflowing long
+     * range) are kept as exact decimal remainder.
+     */
+    public static final class Sum {
+
+        /**
+         * Adds value in micro units.
+         * @param money the value (must not be {@link Money#INEXACT})
+         */
+        public void add(long money) {
+            if (INEXACT == money) {
+                throw new IllegalArgumentException("Inexact value cannot be added in micro units");
+            }
+            addMicros(money);
+        }
+
+        public void add(BigDecimal value) {
+            final long money = of(value);
+            if (INEXACT != money) {
+                addMicros(money);
+            } else {
+                addRemainder(value);
+            }
+        }
+
+        public void add(Sum other) {
+            addMicros(other.micros);
+            if (null != other.remainder) {
+                addRemainder(other.remainder);
+            }
+        }
+
+        /**
+         * Difference of sums.
+         * @param other subtracted sum
+         * @return new sum (this - other)
+         */
+        public Sum subtract(Sum other) {
+            final Sum retval = new Sum();
+            retval.add(this);
+            if (Long.MIN_VALUE != other.micros) {
+                retval.addMicros(-other.micros);
+            } else {
+                retval.addRemainder(Money.toDecimal(other.micros).negate());
+            }
+            if (null != other.remainder) {
+                retval.addRemainder(other.remainder.negate());
+            }
+            return retval;
+        }
+
+        /**
+         * Negated sum.
+         * @return new sum (-this)
+         */
+        public Sum negate() {
+            return new Sum().subtract(this);
+        }
+
+        public BigDecimal toDecimal() {
+            final BigDecimal value = Money.toDecimal(micros);
+            return null != remainder ? value.add(remainder) : value;
+        }
+
+        /**
+         * Converts to double, result is same as {@code toDecimal().doubleValue()}.
+         * @return closest double value
+         */
+        public double toDouble() {
+            return null != remainder ? toDecimal().doubleValue() : Money.toDouble(micros);
+        }
+
+        private void addMicros(long money) {
+            try {
+                micros = Math.addExact(micros, money);
+            } catch (ArithmeticException ex) {
+                addRemainder(Money.toDecimal(money));
+            }
+        }
+
+        private void addRemainder(BigDecimal value) {
+            remainder = null != remainder ? remainder.add(value) : value;
+        }
+
+        private long micros;
+        // part of sum not stored in micro units, null if there is none
+        private BigDecimal remainder;
+    }
+
+    /**
+     * Converts decimal to micro units.
+     * @param value the value
+     * @return the value in micro units or {@link #INEXACT} if value has more than {@link #SCALE} fraction digits or
+     *         is out of range
+     */
+    public static long of(BigDecimal value) {
+        return toScaled(value, SCALE);
+    }
+
+    public static BigDecimal toDecimal(long money) {
+        return BigDecimal.valueOf(money, SCALE);
+    }
+
+    /**
+     * Converts to double, result is same as {@code toDecimal(money).doubleValue()}.
+     * @param money the value in micro units
+     * @return closest double value
+     */
+    public static double toDouble(long money) {
+        if (Math.abs(money) <= MAX_EXACT_DOUBLE) {
+            // both operands are exact, so division is correctly rounded
+            return money / (double) ONE;
+        }
+        return toDecimal(money).doubleValue();
+    }
+
+    public static long add(long a, long b) {
+        return Math.addExact(a, b);
+    }
+
+    public static long subtract(long a, long b) {
+        return Math.subtractExact(a, b);
+    }
+
+    /**
+     * Converts amount using exchange rate (amount * rate / base).
+     * @param money amount in micro units (or {@link #INEXACT})
+     * @param rate rate with given number of fraction digits (or {@link #INEXACT})
+     * @param rateScale number of rate fraction digits
+     * @param base rate base amount (rate is quoted for base units of currency)
+     * @return converted amount in micro units or {@link #INEXACT} if it has more than {@link #SCALE} fraction digits
+     *         (see {@link #convert(BigDecimal, BigDecimal, int)})
+     */
+    public static long convert(long money, long rate, int rateScale, int base) {
+        if (base <= 0) {
+            throw new ArithmeticException("Invalid rate base amount " + base);
+        }
+        if (INEXACT == money || INEXACT == rate) {
+            return INEXACT;
+        }
+        if (rateScale < POWERS_OF_TEN.length && base <= MAX_FAST_BASE) {
+            try {
+                // fast path when product fits into long
+                final long dividend = Math.multiplyExact(money, rate);
+                final long divisor = POWERS_OF_TEN[rateScale] * base;
+                return 0 == dividend % divisor ? dividend / divisor : INEXACT;
+            } catch (ArithmeticException ex) {
+                // fall through
+            }
+        }
+        return of(convert(toDecimal(money), BigDecimal.valueOf(rate, rateScale), base));
+    }
+
+    /**
+     * Converts amount using exchange rate (amount * rate / base) with exact decimal arithmetic.
+     * @param amount the amount
+     * @param rate the rate
+     * @param base rate base amount (rate is quoted for base units of currency)
+     * @return converted amount
+     * @throws ArithmeticException if result has no exact decimal representation
+     */
+    public static BigDecimal convert(BigDecimal amount, BigDecimal rate, int base) {
+        return amount.multiply(rate).divide(BigDecimal.valueOf(base));
+    }
+
+    /**
+     * Converts decimal to long with given number of fraction digits.
+     * @param value the value
+     * @param scale number of fraction digits
+     * @return scaled value or {@link #INEXACT} if value has more fraction digits or is out of range
+     */
+    static long toScaled(BigDecimal value, int scale) {
+        try {
+            return value.setScale(scale, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+        } catch (ArithmeticException ex) {
+            return INEXACT;
+        }
+    }
+
+    private Money() {
+    }
+
+    private static final long ONE = 1000000;
+    private static final long MAX_EXACT_DOUBLE = 1L << 53;
+    private static final int MAX_FAST_BASE = 100000;
+    private static final long[] POWERS_OF_TEN = new long[13];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+}
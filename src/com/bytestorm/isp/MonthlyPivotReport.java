@@ -1,11 +1,12 @@
 package com.bytestorm.isp;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.Map;
 import java.util.TreeSet;
 
 import org.joda.time.DateTime;
@@ -16,24 +17,53 @@ import org.joda.time.DateTimeZone;
  */
 public class MonthlyPivotReport {
     
+    /**
+     * Aggregated amounts (exact sums, see {@link Money.Sum}).
+     */
     public static class Summary {
-        BigDecimal total = BigDecimal.ZERO;
-        BigDecimal totalPayout = BigDecimal.ZERO;
-        BigDecimal totalConverted = BigDecimal.ZERO;
+        int count;
+        final Money.Sum total = new Money.Sum();
+        final Money.Sum totalPayout = new Money.Sum();
+        final Money.Sum totalConverted = new Money.Sum();
         
         private Summary() {            
         }
+        
+        void add(long amount, long payout, long amountConverted) {
+            count++;
+            total.add(amount);
+            totalPayout.add(payout);
+            totalConverted.add(amountConverted);            
+        }
+        
+        void add(BigDecimal amount, BigDecimal payout, BigDecimal amountConverted) {
+            count++;
+            total.add(amount);
+            totalPayout.add(payout);
+            totalConverted.add(amountConverted);            
+        }
+        
+        void add(Summary other) {
+            count += other.count;
+            total.add(other.total);
+            totalPayout.add(other.totalPayout);
+            totalConverted.add(other.totalConverted);            
+        }
+        
+        boolean isEmpty() {
+            return 0 == count;
+        }
     }
     
     private static class PivotData {
         Summary summary = new Summary();
-        ArrayList<Transaction> transactions = new ArrayList<>();
         
-        void add(Transaction transact) {
-            transactions.add(transact);
-            summary.total = summary.total.add(transact.getAmount());
-            summary.totalPayout = summary.totalPayout.add(transact.getPayout());
-            summary.totalConverted = summary.totalConverted.add(transact.getAmountConverted());            
+        void add(long amount, long payout, long amountConverted) {
+            summary.add(amount, payout, amountConverted);
+        }
+        
+        void add(BigDecimal amount, BigDecimal payout, BigDecimal amountConverted) {
+            summary.add(amount, payout, amountConverted);
         }
     }
     
@@ -48,7 +78,7 @@ public class MonthlyPivotReport {
             return new Iterator<Summary>() {
                 @Override
                 public boolean hasNext() {
-                    return ndx < data.length;
+                    return ndx + 1 < data.length;
                 }
 
                 @Override
@@ -68,30 +98,92 @@ public class MonthlyPivotReport {
         private PivotData[] data;
    }
 
-    public MonthlyPivotReport(List<Transaction> transactions) {
-        if (transactions.isEmpty()) {
+    /**
+     * Creates empty report, data is accumulated with {@link #add(int, String, long, long, long)}.
+     */
+    public MonthlyPivotReport() {
+    }
+
+    /**
+     * Creates report of all transactions in table.
+     * @param transactions transactions sorted by date (see {@link TransactionTable#sortByDate()})
+     */
+    public MonthlyPivotReport(TransactionTable transactions) {
+        if (0 == transactions.size()) {
             throw new IllegalArgumentException("Transaction list is empty");
         }
-        // query date (report month/year) and currency (list of used currencies) info 
-        queryBaseInfo(transactions);
-        Log.v("Creating montly pivot report for " + month + "." + year);
-        // initialize data storage            
-        perDay = singleDimPivotDataArray(daysCount);
-        perCurrency = singleDimPivotDataArray(currencies.length);
-        perDayCurrency = new PivotData[daysCount][currencies.length];
-        for (int i = 0; i < daysCount; i++) {
-            for (int j = 0; j < currencies.length; j++) {
-                perDayCurrency[i][j] = new PivotData();
+        for (int day = 0, days = transactions.getDaysCount(); day < days; day++) {
+            final int epochDay = transactions.getDayEpochDay(day);
+            for (int row = transactions.getDayStart(day), end = transactions.getDayEnd(day); row < end; row++) {
+                final long amount = transactions.getAmountMoney(row);
+                final long payout = transactions.getPayoutMoney(row);
+                final long amountConverted = transactions.getAmountConvertedMoney(row);
+                if (Money.INEXACT != amount && Money.INEXACT != payout && Money.INEXACT != amountConverted) {
+                    add(epochDay, transactions.getBuyerCurrency(row), amount, payout, amountConverted);
+                } else {
+                    add(epochDay, transactions.getBuyerCurrency(row), transactions.getAmount(row), 
+                            transactions.getPayout(row), transactions.getAmountConverted(row));
+                }
             }
         }
-        Log.v("  days in month: " + daysCount + " currencies count: " + currencies.length);
-        // construct pivot data
-        for (Transaction t : transactions) {
-            final int day = new DateTime(t.getDate()).getDayOfMonth() - 1;
-            final int currency = currencyIndexes.get(t.getBuyerCurrency());
-            perDay[day].add(t);
-            perCurrency[currency].add(t);
-            perDayCurrency[day][currency].add(t);
+    }
+
+    /**
+     * Accumulates single transaction, report month is determined by first added transaction.
+     * @param epochDay transaction day
+     * @param currency buyer currency
+     * @param amount amount in buyer currency (micro units)
+     * @param payout payout in merchant currency (micro units)
+     * @param amountConverted amount converted using NBP rate (micro units)
+     */
+    public void add(int epochDay, String currency, long amount, long payout, long amountConverted) {
+        lookup(epochDay, currency);
+        summary.add(amount, payout, amountConverted);
+        perDay[lastDay].add(amount, payout, amountConverted);
+        perCurrency.get(lastCurrencyIndex).add(amount, payout, amountConverted);
+        perDayCurrency.get(lastCurrencyIndex)[lastDay].add(amount, payout, amountConverted);
+    }
+
+    /**
+     * Accumulates single transaction with values which cannot be stored in micro units (see {@link Money#INEXACT}).
+     * @param epochDay transaction day
+     * @param currency buyer currency
+     * @param amount amount in buyer currency
+     * @param payout payout in merchant currency
+     * @param amountConverted amount converted using NBP rate
+     */
+    public void add(int epochDay, String currency, BigDecimal amount, BigDecimal payout, BigDecimal amountConverted) {
+        lookup(epochDay, currency);
+        summary.add(amount, payout, amountConverted);
+        perDay[lastDay].add(amount, payout, amountConverted);
+        perCurrency.get(lastCurrencyIndex).add(amount, payout, amountConverted);
+        perDayCurrency.get(lastCurrencyIndex)[lastDay].add(amount, payout, amountConverted);
+    }
+
+    /**
+     * Adds all data accumulated in other report (reports must be for same month).
+     * @param other the report to merge
+     */
+    public void merge(MonthlyPivotReport other) {
+        if (null == other.firstDate) {
+            return;
+        }
+        dayIndex(other.firstEpochDay);
+        if (year != other.year || month != other.month) {
+            throw new IllegalArgumentException("Transactions from more than one month " + other.firstDate + " " + firstDate);
+        }
+        summary.add(other.summary);
+        for (int day = 0; day < daysCount; day++) {
+            perDay[day].summary.add(other.perDay[day].summary);
+        }
+        for (Map.Entry<String, Integer> e : other.currencyIndexes.entrySet()) {
+            final int index = currencyIndex(e.getKey());
+            perCurrency.get(index).summary.add(other.perCurrency.get(e.getValue()).summary);
+            final PivotData[] days = perDayCurrency.get(index);
+            final PivotData[] otherDays = other.perDayCurrency.get(e.getValue());
+            for (int day = 0; day < daysCount; day++) {
+                days[day].summary.add(otherDays[day].summary);
+            }
         }
     }
 
@@ -103,7 +195,15 @@ public class MonthlyPivotReport {
         return days;
     }
     
+    /**
+     * Currencies of accumulated transactions.
+     * @return currencies codes in alphabetical order
+     */
     public String[] getCurrencies() {
+        if (null == currencies) {
+            final TreeSet<String> sorted = new TreeSet<>(currencyIndexes.keySet());
+            currencies = sorted.toArray(new String[sorted.size()]);
+        }
         return currencies;
     }
     
@@ -121,7 +221,7 @@ public class MonthlyPivotReport {
         if (null == index) {
             throw new IllegalArgumentException("Invalid currency code");
         }
-        return perCurrency[index].summary;
+        return perCurrency.get(index).summary;
     }
     
     public Summary getDayCurrencySummary(Date date, String currency) {
@@ -130,43 +230,64 @@ public class MonthlyPivotReport {
         if (null == index) {
             throw new IllegalArgumentException("Invalid currency code");
         }
-        return perDayCurrency[dt.getDayOfMonth() - 1][index].summary;
+        return perDayCurrency.get(index)[dt.getDayOfMonth() - 1].summary;
     }
     
     public Iterable<Summary> getDaySummaryRow(Date date) {
         final DateTime dt = new DateTime(date, DateTimeZone.UTC);        
-        return new SummaryIterable(perDayCurrency[dt.getDayOfMonth() - 1]);
+        final String[] sorted = getCurrencies();
+        final PivotData[] row = new PivotData[sorted.length];
+        for (int i = 0; i < sorted.length; i++) {
+            row[i] = perDayCurrency.get(currencyIndexes.get(sorted[i]))[dt.getDayOfMonth() - 1];
+        }
+        return new SummaryIterable(row);
     }
     
     public Summary getSummary() {
         return summary;
     }
     
-    private void queryBaseInfo(List<Transaction> transactions) {
-        final DateTime firstDate = new DateTime(transactions.get(0).getDate());
-        final TreeSet<String> currenciesSet = new TreeSet<>();
-        // verify that all transactions are from single month
-        for (Transaction t : transactions) {            
-            final DateTime date = new DateTime(t.getDate(), DateTimeZone.UTC);
-            if (date.getYear() != firstDate.getYear() && date.getMonthOfYear() != firstDate.getMonthOfYear()) {
-                throw new IllegalArgumentException("Transactions from more than one month " + date + " " + firstDate);
-            }
-            currenciesSet.add(t.getBuyerCurrency());
-            // summary
-            summary.total = summary.total.add(t.getAmount());
-            summary.totalPayout = summary.totalPayout.add(t.getPayout());
-            summary.totalConverted = summary.totalConverted.add(t.getAmountConverted());
+    private void lookup(int epochDay, String currency) {
+        if (epochDay != lastEpochDay) {
+            lastEpochDay = epochDay;
+            lastDay = dayIndex(epochDay);
         }
-        month = firstDate.getMonthOfYear();
-        year = firstDate.getYear();
-        daysCount = firstDate.dayOfMonth().getMaximumValue();
-        // initialize currencies
-        currencies = currenciesSet.toArray(new String[currenciesSet.size()]);
-        for (int i = 0; i < currencies.length; i++) {
-            currencyIndexes.put(currencies[i], i);
+        // currencies are interned/dictionary decoded, so identity check is enough in most cases
+        if (currency != lastCurrency) {
+            lastCurrency = currency;
+            lastCurrencyIndex = currencyIndex(currency);
         }
     }
     
+    private int dayIndex(int epochDay) {
+        final DateTime date = new DateTime(epochDay * MILLIS_PER_DAY, DateTimeZone.UTC);
+        if (null == firstDate) {
+            // report month is determined by first transaction
+            firstEpochDay = epochDay;
+            firstDate = new DateTime(date.toDate());
+            month = firstDate.getMonthOfYear();
+            year = firstDate.getYear();
+            daysCount = firstDate.dayOfMonth().getMaximumValue();
+            perDay = singleDimPivotDataArray(daysCount);
+            Log.v("Creating montly pivot report for " + month + "." + year);
+        } else if (date.getYear() != firstDate.getYear() && date.getMonthOfYear() != firstDate.getMonthOfYear()) {
+            throw new IllegalArgumentException("Transactions from more than one month " + date + " " + firstDate);
+        }
+        return LocalDate.ofEpochDay(epochDay).getDayOfMonth() - 1;
+    }
+    
+    private int currencyIndex(String currency) {
+        Integer index = currencyIndexes.get(currency);
+        if (null == index) {
+            index = perCurrency.size();
+            currencyIndexes.put(currency, index);
+            perCurrency.add(new PivotData());
+            perDayCurrency.add(singleDimPivotDataArray(daysCount));
+            currencies = null;
+        }
+        return index;
+    }
+    
     private PivotData[] singleDimPivotDataArray(int size) {
         PivotData out[] = new PivotData[size];
         for (int i = 0; i < size; i++) {
@@ -176,12 +297,21 @@ public class MonthlyPivotReport {
     }
     
     private int month, year, daysCount;
+    private DateTime firstDate;
+    private int firstEpochDay;
     
     private String[] currencies;
     private HashMap<String, Integer> currencyIndexes = new HashMap<>();
-    // data storage
+    // data storage (per currency data is stored in order of currency appearance)
     private PivotData[] perDay;
-    private PivotData[] perCurrency;
-    private PivotData[][] perDayCurrency;
+    private ArrayList<PivotData> perCurrency = new ArrayList<>();
+    private ArrayList<PivotData[]> perDayCurrency = new ArrayList<>();
     private Summary summary = new Summary();
+    // last accumulated transaction lookups
+    private int lastEpochDay = Integer.MIN_VALUE;
+    private int lastDay;
+    private String lastCurrency;
+    private int lastCurrencyIndex;
+    
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
 }
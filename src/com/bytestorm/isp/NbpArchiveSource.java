@@ -0,0 +1,148 @@
+package com.bytestorm.isp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.joda.time.LocalDate;
+
+/**
+ * Exchange rates tables stored locally (for offline processing), in directory or zip archive with tables XML files
+ * named as on NBP web site (e.g. a001z170102.xml). Tables directory is read from dir.txt file if present, otherwise
+ * it is built from tables files names.
+ */
+public class NbpArchiveSource implements ExchangeRateSource {
+
+    /**
+     * @param path directory or zip file with tables
+     */
+    public NbpArchiveSource(File path) throws IOException, IllegalArgumentException {
+        this.path = path;
+        if (path.isDirectory()) {
+            this.zip = false;
+            final File[] files = path.listFiles();
+            if (null != files) {
+                for (File f : files) {
+                    if (f.isFile()) {
+                        entries.put(f.getName(), f.getName());
+                    }
+                }
+            }
+        } else if (path.isFile()) {
+            this.zip = true;
+            try (ZipFile zipFile = new ZipFile(path)) {
+                final Enumeration<? extends ZipEntry> zipEntries = zipFile.entries();
+                while (zipEntries.hasMoreElements()) {
+                    final ZipEntry entry = zipEntries.nextElement();
+                    if (!entry.isDirectory()) {
+                        // tables may be stored in sub-directory
+                        final String name = entry.getName();
+                        entries.put(name.substring(name.lastIndexOf('/') + 1), name);
+                    }
+                }
+            }
+        } else {
+            throw new IllegalArgumentException("Exchange tables archive " + path.getAbsolutePath() + " not found");
+        }
+        if (!entries.containsKey(DIRECTORY)) {
+            directory = createDirectory();
+        }
+        Log.v("Exchange tables archive " + path + " opened (files: " + entries.size() + ")");
+    }
+
+    @Override
+    public InputStream openDirectory() throws IOException {
+        if (null != directory) {
+            return new ByteArrayInputStream(directory);
+        }
+        return open(DIRECTORY);
+    }
+
+    // full directory filtered by table publication year
+    @Override
+    public InputStream openDirectory(int year) throws IOException {
+        final String yy = String.format("%02d", year % 100);
+        final StringBuilder sb = new StringBuilder();
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(openDirectory(), 
+                StandardCharsets.US_ASCII))) {
+            String line;
+            while (null != (line = reader.readLine())) {
+                final int date = line.indexOf('z') + 1;
+                if (date > 0 && line.startsWith(yy, date)) {
+                    sb.append(line).append("\r\n");
+                }
+            }
+        }
+        return new ByteArrayInputStream(sb.toString().getBytes(StandardCharsets.US_ASCII));
+    }
+
+    @Override
+    public InputStream openTable(String id) throws IOException {
+        return open(id + ".xml");
+    }
+
+    // only single tables are stored
+    @Override
+    public InputStream openTables(char tableType, LocalDate start, LocalDate end) {
+        return null;
+    }
+
+    private InputStream open(String name) throws IOException {
+        final String entry = entries.get(name);
+        if (null == entry) {
+            throw new FileNotFoundException("File " + name + " not found in exchange tables archive " + path);
+        }
+        return zip ? Utils.openZipEntry(path, entry) : new FileInputStream(new File(path, entry));
+    }
+
+    // tables ids in publication order
+    private byte[] createDirectory() {
+        final ArrayList<String> ids = new ArrayList<>();
+        for (String name : entries.keySet()) {
+            final Matcher m = RE_TABLE.matcher(name);
+            if (m.matches()) {
+                ids.add(m.group(1));
+            }
+        }
+        Collections.sort(ids, new Comparator<String>() {
+            @Override
+            public int compare(String o1, String o2) {
+                final int cmp = publicationDate(o1).compareTo(publicationDate(o2));
+                return 0 != cmp ? cmp : o1.compareTo(o2);
+            }
+        });
+        final StringBuilder sb = new StringBuilder();
+        for (String id : ids) {
+            sb.append(id).append("\r\n");
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static String publicationDate(String id) {
+        return id.substring(id.indexOf('z') + 1);
+    }
+
+    private final File path;
+    private final boolean zip;
+    // file name to file or zip entry path
+    private final HashMap<String, String> entries = new HashMap<>();
+    private byte[] directory;
+
+    private static final String DIRECTORY = "dir.txt";
+    private static final Pattern RE_TABLE = Pattern.compile("^([a-z]\\d{3}z\\d{6})\\.xml$");
+}
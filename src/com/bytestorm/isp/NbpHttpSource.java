@@ -0,0 +1,169 @@
+package com.bytestorm.isp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+/**
+ * Exchange rates tables downloaded from NBP web site (or server with the same layout). Published tables never change,
+ * so they are cached forever, tables directory is cached for limited time and then revalidated.
+ */
+public class NbpHttpSource implements ExchangeRateSource {
+
+    /**
+     * @param cache cache for NBP data, may be null
+     */
+    public NbpHttpSource(DiskCache cache) {
+        this(DEFAULT_URL, cache);
+    }
+
+    /**
+     * @param baseUrl URL of directory with dir.txt and tables XML files
+     * @param cache cache for NBP data, may be null
+     */
+    public NbpHttpSource(String baseUrl, DiskCache cache) {
+        this.baseUrl = slash(baseUrl);
+        this.cache = cache;
+        // NBP API is used only with NBP web site by default
+        this.apiUrl = DEFAULT_URL.equals(this.baseUrl) ? DEFAULT_API_URL : null;
+    }
+    
+    /**
+     * Sets URL of NBP API used for date range requests.
+     * @param apiUrl API URL (e.g. {@link #DEFAULT_API_URL}) or null if range requests should not be used
+     */
+    public void setApiUrl(String apiUrl) {
+        this.apiUrl = null != apiUrl ? slash(apiUrl) : null;
+    }
+
+    /**
+     * Sets how long cached tables directory is used without asking server for changes.
+     * @param directoryTtl time in milliseconds
+     */
+    public void setDirectoryTtl(long directoryTtl) {
+        this.directoryTtl = directoryTtl;
+    }
+
+    @Override
+    public InputStream openDirectory() throws IOException {
+        return openDirectory(url("dir.txt"));
+    }
+    
+    // directories of past years are complete
+    @Override
+    public InputStream openDirectory(int year) throws IOException {
+        final URL url = url("dir" + year + ".txt");
+        return year < new LocalDate(DateTimeZone.UTC).getYear() ? openImmutable(url) : openDirectory(url);
+    }
+    
+    // published tables are immutable so cached copy is always valid
+    @Override
+    public InputStream openTable(String id) throws IOException {
+        return openImmutable(url(id + ".xml"));
+    }
+    
+    // tables published before today are complete, API responds with 404 (FileNotFoundException) if range is empty
+    @Override
+    public InputStream openTables(char tableType, LocalDate start, LocalDate end) throws IOException {
+        if (null == apiUrl) {
+            return null;
+        }
+        final URL url = new URL(apiUrl + "exchangerates/tables/" + Character.toUpperCase(tableType) + "/" + start 
+                + "/" + end + "/?format=xml");
+        return end.isBefore(new LocalDate(DateTimeZone.UTC)) ? openImmutable(url) : url.openStream();
+    }
+
+    // directory grows every working day, cached copy is used for TTL and then revalidated with conditional request
+    private InputStream openDirectory(URL url) throws IOException {
+        if (null == cache) {
+            return url.openStream();
+        }
+        final String key = url.toString();
+        final File cached = cache.get(key);
+        final String meta = cache.getString(key + "#meta");
+        // fetch time, ETag and Last-Modified header values (separated by new lines)
+        final String[] validators = null != cached && null != meta ? meta.split("\n", -1) : null;
+        if (null != validators && System.currentTimeMillis() - Long.parseLong(validators[0]) < directoryTtl) {
+            Log.v("Using cached exchange tables directory");
+            return new FileInputStream(cached);
+        }
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        try {
+            if (null != validators) {
+                if (!validators[1].isEmpty()) {
+                    connection.setRequestProperty("If-None-Match", validators[1]);
+                }
+                if (!validators[2].isEmpty()) {
+                    connection.setRequestProperty("If-Modified-Since", validators[2]);
+                }
+            }
+            final int code = connection.getResponseCode();
+            if (HttpURLConnection.HTTP_NOT_MODIFIED == code && null != validators) {
+                Log.v("Exchange tables directory not modified");
+                cache.putString(key + "#meta", System.currentTimeMillis() + "\n" + validators[1] + "\n" + validators[2]);
+                return new FileInputStream(cached);
+            }
+            if (HttpURLConnection.HTTP_OK != code) {
+                throw new IOException("Cannot download " + url + " (HTTP " + code + ")");
+            }
+            final File file;
+            try (InputStream in = connection.getInputStream()) {
+                file = cache.put(key, in);
+            }
+            cache.putString(key + "#meta", System.currentTimeMillis() + "\n" + headerValue(connection, "ETag") + "\n"
+                    + headerValue(connection, "Last-Modified"));
+            return new FileInputStream(file);
+        } catch (IOException ex) {
+            if (null == cached) {
+                throw ex;
+            }
+            Log.v("Cannot refresh exchange tables directory (" + ex.getMessage() + "), using cached copy");
+            return new FileInputStream(cached);
+        }
+    }
+
+    private InputStream openImmutable(URL url) throws IOException {
+        if (null == cache) {
+            return url.openStream();
+        }
+        final String key = url.toString();
+        File cached = cache.get(key);
+        if (null == cached) {
+            try (InputStream in = url.openStream()) {
+                cached = cache.put(key, in);
+            }
+        } else {
+            Log.v("Using cached " + url);
+        }
+        return new FileInputStream(cached);
+    }
+
+    private URL url(String name) throws MalformedURLException {
+        return new URL(baseUrl + name);
+    }
+
+    private static String slash(String url) {
+        return url.endsWith("/") ? url : url + "/";
+    }
+
+    private static String headerValue(HttpURLConnection connection, String name) {
+        final String value = connection.getHeaderField(name);
+        return null != value ? value : "";
+    }
+
+    private final String baseUrl;
+    private final DiskCache cache;
+    private String apiUrl;
+    private long directoryTtl = DEFAULT_DIRECTORY_TTL;
+
+    public static final String DEFAULT_URL = "http://www.nbp.pl/kursy/xml/";
+    public static final String DEFAULT_API_URL = "https://api.nbp.pl/api/";
+    private static final long DEFAULT_DIRECTORY_TTL = 60 * 60 * 1000;
+}
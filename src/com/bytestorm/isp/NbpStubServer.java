@@ -0,0 +1,226 @@
+package com.bytestorm.isp;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.util.HashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.joda.time.LocalDate;
+import org.joda.time.format.DateTimeFormat;
+import org.joda.time.format.DateTimeFormatter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local HTTP server with NBP web site layout (and NBP API date range requests emulation) serving tables of other
+ * source (e.g. {@link NbpArchiveSource}) with fixed response latency. Used to test or benchmark exchange data
+ * download without network access ({@link NbpHttpSource} pointed to {@link #getBaseUrl()} and {@link #getApiUrl()}).
+ */
+public class NbpStubServer implements Closeable {
+
+    /**
+     * Starts server on loopback interface.
+     * @param source served tables
+     * @param port server port (0 for any free port)
+     * @param latency delay of every response in milliseconds
+     */
+    public NbpStubServer(final ExchangeRateSource source, int port, final long latency) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (latency > 0) {
+                        Thread.sleep(latency);
+                    }
+                    final String name = exchange.getRequestURI().getPath().substring(PATH.length());
+                    final InputStream in;
+                    try {
+                        final Matcher m = RE_YEAR_DIRECTORY.matcher(name);
+                        if ("dir.txt".equals(name)) {
+                            in = source.openDirectory();
+                        } else if (m.matches()) {
+                            in = source.openDirectory(Integer.parseInt(m.group(1)));
+                        } else if (name.endsWith(".xml")) {
+                            in = source.openTable(name.substring(0, name.length() - ".xml".length()));
+                        } else {
+                            throw new FileNotFoundException(name);
+                        }
+                    } catch (FileNotFoundException ex) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    try {
+                        exchange.sendResponseHeaders(200, 0);
+                        try (OutputStream out = exchange.getResponseBody()) {
+                            final byte[] buf = new byte[64 * 1024];
+                            int count;
+                            while ((count = in.read(buf)) > 0) {
+                                out.write(buf, 0, count);
+                            }
+                        }
+                    } finally {
+                        in.close();
+                    }
+                } catch (InterruptedException ex) {
+                    exchange.sendResponseHeaders(503, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.createContext(API_PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                try {
+                    if (latency > 0) {
+                        Thread.sleep(latency);
+                    }
+                    final Matcher m = RE_RANGE.matcher(
+                            exchange.getRequestURI().getPath().substring(API_PATH.length()));
+                    final byte[] response = m.matches() ? createRange(source, 
+                            Character.toLowerCase(m.group(1).charAt(0)), new LocalDate(m.group(2)), 
+                            new LocalDate(m.group(3))) : null;
+                    if (null == response) {
+                        exchange.sendResponseHeaders(404, -1);
+                        return;
+                    }
+                    exchange.sendResponseHeaders(200, response.length);
+                    try (OutputStream out = exchange.getResponseBody()) {
+                        out.write(response);
+                    }
+                } catch (InterruptedException ex) {
+                    exchange.sendResponseHeaders(503, -1);
+                } catch (ParseException | IllegalArgumentException ex) {
+                    exchange.sendResponseHeaders(400, -1);
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        // concurrent requests are served in parallel, so latency is not serialized
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        Log.v("NBP stub server started at " + getBaseUrl());
+    }
+
+    /**
+     * URL of served tables directory (to be used as {@link NbpHttpSource} base URL).
+     * @return the URL
+     */
+    public String getBaseUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + PATH;
+    }
+
+    /**
+     * URL of NBP API emulation (to be used as {@link NbpHttpSource} API URL).
+     * @return the URL
+     */
+    public String getApiUrl() {
+        return "http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort() + API_PATH;
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    // NBP API response built from single tables of source (range requests of source are used if supported)
+    private static byte[] createRange(ExchangeRateSource source, char tableType, LocalDate start, LocalDate end) 
+            throws IOException, ParseException {
+        final InputStream range = source.openTables(tableType, start, end);
+        if (null != range) {
+            try (InputStream in = range) {
+                final ByteArrayOutputStream out = new ByteArrayOutputStream();
+                final byte[] buf = new byte[64 * 1024];
+                int count;
+                while ((count = in.read(buf)) > 0) {
+                    out.write(buf, 0, count);
+                }
+                return out.toByteArray();
+            }
+        }
+        final StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        sb.append("<ArrayOfExchangeRatesTable>");
+        int tables = 0;
+        for (int year = start.getYear(); year <= end.getYear(); year++) {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(source.openDirectory(year)))) {
+                String id;
+                while (null != (id = reader.readLine())) {
+                    if (id.isEmpty() || tableType != id.charAt(0)) {
+                        continue;
+                    }
+                    final LocalDate date = DATE_FORMAT.parseLocalDate(id.substring(id.indexOf('z') + 1));
+                    if (date.isBefore(start) || date.isAfter(end)) {
+                        continue;
+                    }
+                    final HashMap<String, Exchange.Quote> table;
+                    try (InputStream in = source.openTable(id)) {
+                        table = NbpTableParser.parse(in, null);
+                    }
+                    sb.append("<ExchangeRatesTable><Table>").append(Character.toUpperCase(tableType))
+                            .append("</Table><No>").append(id).append("</No><EffectiveDate>").append(date)
+                            .append("</EffectiveDate><Rates>");
+                    for (Exchange.Quote quote : table.values()) {
+                        // API rates are quoted per single unit
+                        sb.append("<Rate><Code>").append(quote.getCurrency()).append("</Code><Mid>")
+                                .append(quote.getRate().divide(BigDecimal.valueOf(quote.getAmount()), 
+                                        MathContext.DECIMAL64).toPlainString())
+                                .append("</Mid></Rate>");
+                    }
+                    sb.append("</Rates></ExchangeRatesTable>");
+                    tables++;
+                }
+            }
+        }
+        return tables > 0 ? sb.append("</ArrayOfExchangeRatesTable>\n").toString().getBytes(StandardCharsets.UTF_8) 
+                : null;
+    }
+
+    /**
+     * Runs stub server until process is killed.
+     * @param args tables archive (directory or zip), optional port and latency in milliseconds
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: NbpStubServer <tables dir or zip> [port] [latency ms]");
+            System.exit(1);
+        }
+        Log.setVerbose(true);
+        final NbpStubServer server = new NbpStubServer(new NbpArchiveSource(new File(args[0])),
+                args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_PORT,
+                args.length > 2 ? Long.parseLong(args[2]) : 0);
+        System.out.println("Serving " + args[0] + " at " + server.getBaseUrl());
+    }
+
+    private final HttpServer server;
+    private final ExecutorService executor;
+
+    private static final String PATH = "/kursy/xml/";
+    private static final String API_PATH = "/api/";
+    private static final Pattern RE_YEAR_DIRECTORY = Pattern.compile("^dir(\\d{4})\\.txt$");
+    private static final Pattern RE_RANGE = Pattern.compile(
+            "^exchangerates/tables/([ABab])/(\\d{4}-\\d{2}-\\d{2})/(\\d{4}-\\d{2}-\\d{2})/?$");
+    private static final DateTimeFormatter DATE_FORMAT = DateTimeFormat.forPattern("yyMMdd");
+    private static final int DEFAULT_PORT = 8280;
+}
@@ -0,0 +1,274 @@
+package com.bytestorm.isp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.math.BigDecimal;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Set;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * Streaming (StAX) parser of NBP exchange rates table XML. Only currency code, conversion multiplier and average rate
+ * of every position are read, no document tree is built. Parsing may stop as soon as all requested currencies are
+ * found.
+ */
+public class NbpTableParser {
+
+    /**
+     * Parses table positions.
+     * @param in table XML stream (not closed)
+     * @param currencies currencies codes to read (upper case) or null to read all positions
+     * @return quotes by currency code
+     * @throws IOException if stream cannot be read or XML is malformed
+     * @throws ParseException if multiplier or rate has invalid format
+     */
+    public static HashMap<String, Exchange.Quote> parse(InputStream in, Set<String> currencies)
+            throws IOException, ParseException {
+        final HashMap<String, Exchange.Quote> table = new HashMap<>();
+        if (null != currencies && currencies.isEmpty()) {
+            return table;
+        }
+        try {
+            final XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                Exchange.Quote entry = null;
+                String element = null;
+                final StringBuilder text = new StringBuilder();
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        element = reader.getLocalName();
+                        text.setLength(0);
+                        if (POSITION.equals(element)) {
+                            entry = new Exchange.Quote();
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                        if (null != entry && null != element) {
+                            text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (null == entry) {
+                            break;
+                        }
+                        switch (reader.getLocalName()) {
+                        case MULTIPLIER:
+                            entry.setAmount(parseInt(text));
+                            break;
+                        case RATE:
+                            entry.setRate(parseDecimal(text));
+                            break;
+                        case CURRENCY:
+                            entry.setCurrency(text.toString().trim().toUpperCase(Locale.US));
+                            break;
+                        case POSITION:
+                            if (null == currencies || currencies.contains(entry.getCurrency())) {
+                                table.put(entry.getCurrency(), entry);
+                                if (null != currencies && table.size() == currencies.size()) {
+                                    // all requested currencies found, rest of table is not needed
+                                    return table;
+                                }
+                            }
+                            entry = null;
+                            break;
+                        }
+                        element = null;
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("Invalid exchange table XML", ex);
+        }
+        return table;
+    }
+
+    /**
+     * Parses tables of NBP API date range response (rates are quoted per single currency unit).
+     * @param in response XML stream (not closed)
+     * @param currencies currencies codes to read (upper case) or null to read all rates
+     * @return tables in publication order
+     * @throws IOException if stream cannot be read or XML is malformed
+     * @throws ParseException if rate has invalid format
+     */
+    public static ArrayList<Table> parseRange(InputStream in, Set<String> currencies)
+            throws IOException, ParseException {
+        final ArrayList<Table> tables = new ArrayList<>();
+        try {
+            final XMLStreamReader reader = FACTORY.createXMLStreamReader(in);
+            try {
+                Table table = null;
+                String code = null;
+                BigDecimal rate = null;
+                final StringBuilder text = new StringBuilder();
+                while (reader.hasNext()) {
+                    switch (reader.next()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        text.setLength(0);
+                        switch (reader.getLocalName()) {
+                        case RANGE_TABLE:
+                            table = new Table();
+                            break;
+                        case RANGE_RATE:
+                            code = null;
+                            rate = null;
+                            break;
+                        }
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                        text.append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        if (null == table) {
+                            break;
+                        }
+                        switch (reader.getLocalName()) {
+                        case RANGE_NUMBER:
+                            table.number = text.toString().trim();
+                            break;
+                        case RANGE_DATE:
+                            table.date = text.toString().trim();
+                            break;
+                        case RANGE_CODE:
+                            code = text.toString().trim().toUpperCase(Locale.US);
+                            break;
+                        case RANGE_MID:
+                            if (null == currencies || currencies.contains(code)) {
+                                rate = parseDecimal(text);
+                            }
+                            break;
+                        case RANGE_RATE:
+                            if (null != rate) {
+                                table.quotes.put(code, new Exchange.Quote(code, 1, rate));
+                            }
+                            break;
+                        case RANGE_TABLE:
+                            if (null == table.number || null == table.date) {
+                                throw new ParseException("Exchange table number or date missing", 0);
+                            }
+                            tables.add(table);
+                            table = null;
+                            break;
+                        }
+                        text.setLength(0);
+                        break;
+                    }
+                }
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException ex) {
+            throw new IOException("Invalid exchange tables XML", ex);
+        }
+        return tables;
+    }
+
+    /**
+     * Single table of date range response.
+     */
+    public static class Table {
+
+        private Table() {
+        }
+
+        /**
+         * @return table number (e.g. 001/A/NBP/2017)
+         */
+        public String getNumber() {
+            return number;
+        }
+
+        /**
+         * @return publication date (yyyy-MM-dd)
+         */
+        public String getDate() {
+            return date;
+        }
+
+        public HashMap<String, Exchange.Quote> getQuotes() {
+            return quotes;
+        }
+
+        private String number;
+        private String date;
+        private final HashMap<String, Exchange.Quote> quotes = new HashMap<>();
+    }
+
+    // non negative integer
+    private static int parseInt(CharSequence text) throws ParseException {
+        final String str = text.toString().trim();
+        try {
+            return Integer.parseInt(str);
+        } catch (NumberFormatException ex) {
+            throw new ParseException("Invalid number " + str, 0);
+        }
+    }
+
+    /**
+     * Parses decimal in NBP format (comma or dot as decimal separator, no grouping), result is same as with pl_PL
+     * {@link java.text.DecimalFormat} with big decimal parsing (scale is number of fraction digits).
+     */
+    static BigDecimal parseDecimal(CharSequence text) throws ParseException {
+        int start = 0;
+        int end = text.length();
+        while (start < end && Character.isWhitespace(text.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(text.charAt(end - 1))) {
+            end--;
+        }
+        boolean negative = false;
+        if (start < end && '-' == text.charAt(start)) {
+            negative = true;
+            start++;
+        }
+        long unscaled = 0;
+        int scale = -1;
+        int digits = 0;
+        for (int i = start; i < end; i++) {
+            final char c = text.charAt(i);
+            if (c >= '0' && c <= '9') {
+                unscaled = unscaled * 10 + (c - '0');
+                if (scale >= 0) {
+                    scale++;
+                }
+                if (++digits > MAX_DIGITS) {
+                    throw new ParseException("Number too long " + text, i);
+                }
+            } else if ((',' == c || '.' == c) && scale < 0) {
+                scale = 0;
+            } else {
+                throw new ParseException("Invalid number " + text, i);
+            }
+        }
+        if (0 == digits) {
+            throw new ParseException("Invalid number " + text, start);
+        }
+        return BigDecimal.valueOf(negative ? -unscaled : unscaled, Math.max(0, scale));
+    }
+
+    private static final String POSITION = "pozycja";
+    private static final String MULTIPLIER = "przelicznik";
+    private static final String RATE = "kurs_sredni";
+    private static final String CURRENCY = "kod_waluty";
+    private static final String RANGE_TABLE = "ExchangeRatesTable";
+    private static final String RANGE_NUMBER = "No";
+    private static final String RANGE_DATE = "EffectiveDate";
+    private static final String RANGE_RATE = "Rate";
+    private static final String RANGE_CODE = "Code";
+    private static final String RANGE_MID = "Mid";
+    // digits fitting in long
+    private static final int MAX_DIGITS = 18;
+
+    private static final XMLInputFactory FACTORY = XMLInputFactory.newInstance();
+}
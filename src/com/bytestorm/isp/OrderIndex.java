@@ -0,0 +1,212 @@
+package com.bytestorm.isp;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Open addressing index of order ids used to join sales reports with earnings transactions. Ids are kept as UTF-8
+ * bytes in single arena array, so every entry costs only few bytes on top of id itself. Index is filled by single
+ * thread and then probed (possibly concurrently) with {@link #claim(String)}, each entry can be claimed only once
+ * (same semantic as remove from map).
+ */
+public class OrderIndex {
+    public static final int NOT_FOUND = -1;
+
+    public OrderIndex(int expectedSize) {
+        expectedSize = Math.max(16, expectedSize);
+        slots = new int[Integer.highestOneBit(expectedSize * 2 - 1) << 1];
+        keyOffsets = new int[expectedSize + 1];
+        rows = new int[expectedSize];
+        keys = new byte[expectedSize * 24];
+    }
+
+    /**
+     * Adds id to index (row of already present id is replaced). Must not be called concurrently with other methods.
+     * @param id order id
+     * @param row transaction row
+     */
+    public void put(String id, int row) {
+        final byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        put(key, 0, key.length, row);
+    }
+
+    /**
+     * Adds all entries of other index (e.g. built for single report), same constraints as {@link #put(String, int)}.
+     * @param other the index
+     * @param rowOffset offset added to other index rows
+     */
+    public void putAll(OrderIndex other, int rowOffset) {
+        for (int entry = 0; entry < other.size; entry++) {
+            final int start = other.keyOffsets[entry];
+            put(other.keys, start, other.keyOffsets[entry + 1] - start, other.rows[entry] + rowOffset);
+        }
+    }
+
+    /**
+     * Finds and claims entry with given id.
+     * @param id order id
+     * @return transaction row or {@link #NOT_FOUND} if id is not in index or was already claimed
+     */
+    public int claim(String id) {
+        final byte[] key = id.getBytes(StandardCharsets.UTF_8);
+        return claim(key, 0, key.length);
+    }
+
+    /**
+     * Finds and claims entry with given id (thread safe).
+     * @param buf buffer with UTF-8 encoded id
+     * @param offset id offset
+     * @param len id length in bytes
+     * @return transaction row or {@link #NOT_FOUND} if id is not in index or was already claimed
+     */
+    public int claim(byte[] buf, int offset, int len) {
+        final int entry = find(buf, offset, len);
+        if (entry < 0) {
+            return NOT_FOUND;
+        }
+        final int word = entry >>> 6;
+        final long bit = 1L << (entry & 63);
+        for (;;) {
+            final long value = claimed.get(word);
+            if (0 != (value & bit)) {
+                return NOT_FOUND;
+            }
+            if (claimed.compareAndSet(word, value, value | bit)) {
+                pending.decrementAndGet();
+                return rows[entry];
+            }
+        }
+    }
+
+    /**
+     * Checks if id is in index (and was not claimed yet).
+     * @param buf buffer with UTF-8 encoded id
+     * @param offset id offset
+     * @param len id length in bytes
+     * @return true if matching entry is pending
+     */
+    public boolean isPending(byte[] buf, int offset, int len) {
+        final int entry = find(buf, offset, len);
+        return entry >= 0 && 0 == (claimed.get(entry >>> 6) & (1L << (entry & 63)));
+    }
+
+    /**
+     * Number of not claimed entries.
+     * @return the count
+     */
+    public int getPendingCount() {
+        return pending.get();
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Adds UTF-8 encoded id to index, same as {@link #put(String, int)}.
+     * @param buf buffer with UTF-8 encoded id
+     * @param offset id offset
+     * @param len id length in bytes
+     * @param row transaction row
+     */
+    public void put(byte[] buf, int offset, int len, int row) {
+        final int mask = slots.length - 1;
+        for (int slot = hash(buf, offset, len) & mask; ; slot = (slot + 1) & mask) {
+            final int entry = slots[slot] - 1;
+            if (entry < 0) {
+                slots[slot] = append(buf, offset, len, row) + 1;
+                break;
+            }
+            if (keyEquals(entry, buf, offset, len)) {
+                rows[entry] = row;
+                return;
+            }
+        }
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+    }
+
+    private int find(byte[] buf, int offset, int len) {
+        final int mask = slots.length - 1;
+        for (int slot = hash(buf, offset, len) & mask; ; slot = (slot + 1) & mask) {
+            final int entry = slots[slot] - 1;
+            if (entry < 0) {
+                return NOT_FOUND;
+            }
+            if (keyEquals(entry, buf, offset, len)) {
+                return entry;
+            }
+        }
+    }
+
+    private boolean keyEquals(int entry, byte[] buf, int offset, int len) {
+        final int start = keyOffsets[entry];
+        if (keyOffsets[entry + 1] - start != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (keys[start + i] != buf[offset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int append(byte[] buf, int offset, int len, int row) {
+        if (size == rows.length) {
+            rows = Arrays.copyOf(rows, size * 2);
+            keyOffsets = Arrays.copyOf(keyOffsets, size * 2 + 1);
+        }
+        final int start = keyOffsets[size];
+        if (start + len > keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(keys.length * 2, start + len));
+        }
+        System.arraycopy(buf, offset, keys, start, len);
+        keyOffsets[size + 1] = start + len;
+        rows[size] = row;
+        if (size >>> 6 >= claimed.length()) {
+            claimed = new AtomicLongArray(Math.max(claimed.length() * 2, (size >>> 6) + 1));
+        }
+        pending.incrementAndGet();
+        return size++;
+    }
+
+    private void rehash(int capacity) {
+        slots = new int[capacity];
+        final int mask = capacity - 1;
+        for (int entry = 0; entry < size; entry++) {
+            final int start = keyOffsets[entry];
+            int slot = hash(keys, start, keyOffsets[entry + 1] - start) & mask;
+            while (0 != slots[slot]) {
+                slot = (slot + 1) & mask;
+            }
+            slots[slot] = entry + 1;
+        }
+    }
+
+    // FNV-1a with final avalanche (ids share long common prefixes)
+    private static int hash(byte[] buf, int offset, int len) {
+        int h = 0x811c9dc5;
+        for (int i = offset, end = offset + len; i < end; i++) {
+            h = (h ^ buf[i]) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h;
+    }
+
+    private int size;
+    // slot holds entry index + 1 (0 is empty slot)
+    private int[] slots;
+    // entry i key is stored in keys[keyOffsets[i]..keyOffsets[i + 1])
+    private int[] keyOffsets;
+    private byte[] keys;
+    private int[] rows;
+    // one bit per entry, entries are only added before claiming starts so array is never replaced during probes
+    private AtomicLongArray claimed = new AtomicLongArray(1);
+    private final AtomicInteger pending = new AtomicInteger();
+}
@@ -29,8 +29,9 @@ import org.supercsv.exception.SuperCsvCellProcessorException;
 import org.supercsv.util.CsvContext;
 
 /**
- * Converts a String to a Date using the {@link SimpleDateFormat} class. If you want to convert from a Date to a String,
- * use the {@link FmtDate} processor.
+ * Converts a String to a Date using the {@link CachedDateParser} class (immutable java.time formatter with memo of
+ * already parsed strings, so processor may be shared between threads). Patterns and parsing rules are same as for
+ * {@link SimpleDateFormat}. If you want to convert from a Date to a String, use the {@link FmtDate} processor.
  * <p>
  * Some example date formats you can use are:<br>
  * <code>"dd/MM/yyyy"</code> (parses a date formatted as "25/12/2011")<br>
@@ -49,13 +50,7 @@ import org.supercsv.util.CsvContext;
  */
 public class ParseDateEx extends CellProcessorAdaptor implements StringCellProcessor {
     
-    private final String dateFormat;
-    
-    private final boolean lenient;
-    
-    private final Locale locale;
-    
-    private final TimeZone tz;
+    private final CachedDateParser parser;
     
     /**
      * Constructs a new <tt>ParseDate</tt> processor which converts a String to a Date using the supplied date format.
@@ -83,10 +78,7 @@ public class ParseDateEx extends CellProcessorAdaptor implements StringCellProce
     public ParseDateEx(final String dateFormat, final boolean lenient) {
         super();
         checkPreconditions(dateFormat);
-        this.dateFormat = dateFormat;
-        this.lenient = lenient;
-        this.locale = null;
-        this.tz = null;
+        this.parser = new CachedDateParser(dateFormat, lenient, null, null);
     }
     
     /**
@@ -105,10 +97,7 @@ public class ParseDateEx extends CellProcessorAdaptor implements StringCellProce
     public ParseDateEx(final String dateFormat, final boolean lenient, final Locale locale, final TimeZone tz) {
         super();
         checkPreconditions(dateFormat, locale);
-        this.dateFormat = dateFormat;
-        this.lenient = lenient;
-        this.locale = locale;
-        this.tz = tz;
+        this.parser = new CachedDateParser(dateFormat, lenient, locale, tz);
     }
     
     /**
@@ -142,10 +131,7 @@ public class ParseDateEx extends CellProcessorAdaptor implements StringCellProce
     public ParseDateEx(final String dateFormat, final boolean lenient, final DateCellProcessor next) {
         super(next);
         checkPreconditions(dateFormat);
-        this.dateFormat = dateFormat;
-        this.lenient = lenient;
-        this.locale = null;
-        this.tz = null;
+        this.parser = new CachedDateParser(dateFormat, lenient, null, null);
     }
     
     /**
@@ -166,10 +152,24 @@ public class ParseDateEx extends CellProcessorAdaptor implements StringCellProce
     public ParseDateEx(final String dateFormat, final boolean lenient, final Locale locale, final TimeZone tz, final DateCellProcessor next) {
         super(next);
         checkPreconditions(dateFormat, locale);
-        this.dateFormat = dateFormat;
-        this.lenient = lenient;
-        this.locale = locale;
-        this.tz = tz;
+        this.parser = new CachedDateParser(dateFormat, lenient, locale, tz);
+    }
+    
+    /**
+     * Constructs a new <tt>ParseDate</tt> processor which converts a String to a Date using the supplied (possibly
+     * shared) parser.
+     * 
+     * @param parser
+     *            the parser to use
+     * @throws NullPointerException
+     *             if parser is null
+     */
+    public ParseDateEx(final CachedDateParser parser) {
+        super();
+        if( parser == null ) {
+            throw new NullPointerException("parser should not be null");
+        }
+        this.parser = parser;
     }
     
     /**
@@ -218,17 +218,7 @@ public class ParseDateEx extends CellProcessorAdaptor implements StringCellProce
         }
         
         try {
-            final SimpleDateFormat formatter;
-            if( locale == null ) {
-                formatter = new SimpleDateFormat(dateFormat);
-            } else {
-                formatter = new SimpleDateFormat(dateFormat, locale);
-            }
-            formatter.setLenient(lenient);
-            if (null != tz) {
-                formatter.setTimeZone(tz);
-            }
-            final Date result = formatter.parse((String) value);
+            final Date result = parser.parse((String) value);
             return next.execute(result, context);
         }
         catch(final ParseException e) {
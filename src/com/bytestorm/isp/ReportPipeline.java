@@ -0,0 +1,302 @@
+package com.bytestorm.isp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Bounded producer/consumer pipeline over report sources. Single background thread opens sources one by one and
+ * reads their data (download, inflate) into chunks, while consumer parses already fetched reports, so total time is
+ * close to max(fetch, parse) instead of their sum. Number of buffered chunks is limited (producer waits when consumer
+ * is behind). Pipeline sources must be opened in order and each of them only once, sources not opened when pipeline
+ * is closed are discarded.
+ */
+public class ReportPipeline implements Closeable {
+
+    /**
+     * Creates pipeline and starts fetching first source.
+     * @param sources sources to fetch (in consumer order)
+     * @param bufferSize maximum number of bytes buffered (at least one chunk is always buffered), if 0 sources are
+     *        passed through without prefetching
+     * @param channels if true local uncompressed sources (with channel available) are not fetched, their channels are
+     *        passed to consumer
+     */
+    public ReportPipeline(ReportSource[] sources, long bufferSize, boolean channels) {
+        this.sources = sources;
+        this.channels = channels;
+        this.prefetched = new Prefetched[sources.length];
+        for (int i = 0; i < sources.length; i++) {
+            prefetched[i] = new Prefetched(sources[i]);
+        }
+        this.permits = new Semaphore((int) Math.max(1, Math.min(Integer.MAX_VALUE, bufferSize / CHUNK_SIZE)));
+        if (bufferSize <= 0 || 0 == sources.length) {
+            this.producer = null;
+            return;
+        }
+        this.producer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                produce();
+            }
+        }, "report-prefetch");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**
+     * Source with data read from pipeline.
+     * @param index source index
+     * @return the source
+     */
+    public ReportSource getSource(int index) {
+        return null != producer ? prefetched[index] : sources[index];
+    }
+
+    /**
+     * Stops fetching and releases all buffered data.
+     */
+    @Override
+    public void close() {
+        if (null == producer) {
+            return;
+        }
+        closed = true;
+        producer.interrupt();
+        for (Prefetched p : prefetched) {
+            p.discard();
+        }
+    }
+
+    private void produce() {
+        for (int i = 0; i < sources.length && !closed; i++) {
+            final Prefetched p = prefetched[i];
+            try {
+                if (channels) {
+                    final FileChannel channel = sources[i].openChannel();
+                    if (null != channel) {
+                        // memory mapped by consumer, nothing to fetch
+                        channel.close();
+                        p.direct = true;
+                        p.chunks.add(EOF);
+                        continue;
+                    }
+                }
+                Log.v("Fetching report " + sources[i].getName());
+                try (InputStream in = sources[i].open()) {
+                    for (;;) {
+                        permits.acquire();
+                        final byte[] chunk = readChunk(in);
+                        if (p.discarded || null == chunk) {
+                            permits.release();
+                            break;
+                        }
+                        p.chunks.add(chunk);
+                        if (p.discarded) {
+                            // consumer closed stream while chunk was read
+                            p.drain();
+                            break;
+                        }
+                        if (chunk.length < CHUNK_SIZE) {
+                            break;
+                        }
+                    }
+                }
+            } catch (InterruptedException | InterruptedIOException ex) {
+                p.chunks.add(EOF);
+                return;
+            } catch (IOException | RuntimeException ex) {
+                p.error = ex;
+            }
+            p.chunks.add(EOF);
+        }
+    }
+
+    private static byte[] readChunk(InputStream in) throws IOException {
+        final byte[] chunk = new byte[CHUNK_SIZE];
+        int len = 0;
+        while (len < CHUNK_SIZE) {
+            final int count = in.read(chunk, len, CHUNK_SIZE - len);
+            if (count < 0) {
+                break;
+            }
+            len += count;
+        }
+        if (0 == len) {
+            return null;
+        }
+        return len < CHUNK_SIZE ? Arrays.copyOf(chunk, len) : chunk;
+    }
+
+    private class Prefetched implements ReportSource {
+
+        Prefetched(ReportSource source) {
+            this.source = source;
+        }
+
+        @Override
+        public String getName() {
+            return source.getName();
+        }
+
+        @Override
+        public long getSizeHint() {
+            return source.getSizeHint();
+        }
+
+        @Override
+        public synchronized InputStream open() throws IOException {
+            if (opened || awaitDirect()) {
+                // data already consumed (or not fetched at all)
+                return source.open();
+            }
+            opened = true;
+            return new ChunksInputStream(this);
+        }
+
+        @Override
+        public FileChannel openChannel() throws IOException {
+            return awaitDirect() ? source.openChannel() : null;
+        }
+
+        // waits until producer decides if source is fetched (only needed for sources with channels)
+        private boolean awaitDirect() throws IOException {
+            if (!channels) {
+                return false;
+            }
+            final byte[] head = next();
+            if (direct) {
+                return true;
+            }
+            pushBack(head);
+            return false;
+        }
+
+        byte[] next() throws IOException {
+            if (null != pending) {
+                final byte[] chunk = pending;
+                pending = null;
+                return chunk;
+            }
+            if (closed && chunks.isEmpty()) {
+                throw new IOException("Reports pipeline closed");
+            }
+            try {
+                final byte[] chunk = chunks.take();
+                if (EOF == chunk) {
+                    // keep end marker for subsequent reads
+                    chunks.add(EOF);
+                    if (null != error) {
+                        throw new IOException("Cannot fetch report " + source.getName(), error);
+                    }
+                } else {
+                    permits.release();
+                }
+                return chunk;
+            } catch (InterruptedException ex) {
+                throw new InterruptedIOException("Reports pipeline interrupted");
+            }
+        }
+
+        void pushBack(byte[] chunk) {
+            pending = chunk;
+        }
+
+        void discard() {
+            discarded = true;
+            pending = null;
+            drain();
+        }
+
+        // releases buffered chunks (called by consumer and producer)
+        void drain() {
+            byte[] chunk;
+            while (null != (chunk = chunks.poll())) {
+                if (EOF == chunk) {
+                    chunks.add(EOF);
+                    break;
+                }
+                permits.release();
+            }
+        }
+
+        private final ReportSource source;
+        private final LinkedBlockingQueue<byte[]> chunks = new LinkedBlockingQueue<>();
+        private byte[] pending;
+        private boolean opened;
+        private volatile boolean direct;
+        private volatile boolean discarded;
+        private volatile Exception error;
+    }
+
+    private static class ChunksInputStream extends InputStream {
+
+        ChunksInputStream(Prefetched source) {
+            this.source = source;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (0 == len) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int count = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, count);
+            pos += count;
+            return count;
+        }
+
+        @Override
+        public int available() {
+            return null != chunk ? chunk.length - pos : 0;
+        }
+
+        @Override
+        public void close() {
+            // rest of report is not needed (e.g. all sales matched), producer skips remaining data
+            chunk = EOF;
+            source.discard();
+        }
+
+        private boolean fill() throws IOException {
+            while (null == chunk || pos == chunk.length) {
+                if (EOF == chunk) {
+                    return false;
+                }
+                chunk = source.next();
+                pos = 0;
+            }
+            return true;
+        }
+
+        private final Prefetched source;
+        private byte[] chunk;
+        private int pos;
+    }
+
+    private final ReportSource[] sources;
+    private final boolean channels;
+    private final Prefetched[] prefetched;
+    private final Semaphore permits;
+    private final Thread producer;
+    private volatile boolean closed;
+
+    private static final int CHUNK_SIZE = 1024 * 1024;
+    // end of source data marker
+    private static final byte[] EOF = new byte[0];
+}
@@ -0,0 +1,36 @@
+package com.bytestorm.isp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+
+/**
+ * Single report CSV data source. Data is read directly from origin (zip entry, storage media stream etc.) 
+ * without intermediate temporary files. 
+ */
+public interface ReportSource {
+    
+    /**
+     * Original name of the CSV file (zip entry name if report is compressed).
+     * @return the name
+     */
+    public String getName();
+    
+    /**
+     * Expected size of report data, this is only a hint (for compressed reports it may be compressed size). 
+     * @return size in bytes or -1 if unknown
+     */
+    public long getSizeHint();
+    
+    /**
+     * Opens new stream with raw (UTF-8 encoded) CSV data, caller is responsible for closing it.
+     * @return CSV data stream
+     */
+    public InputStream open() throws IOException;
+    
+    /**
+     * Opens read only channel with raw CSV data suitable for memory mapping, caller is responsible for closing it.
+     * @return channel or null if report is not stored as local uncompressed file 
+     */
+    public FileChannel openChannel() throws IOException;
+}
@@ -34,25 +34,34 @@ public class Sale {
         "buyerCountry"
     };    
     
-    public static final CellProcessor CSV[] = new CellProcessor[] {
-        new NotNull(),
-        null,
-        new ParseLong(),
-        null,
-        null,
-        null,
-        null,
-        null,
-        null,
-        new NotNull(),
-        new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US)),
-        new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US)),
-        new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US)),
-        null,
-        null,
-        null,
-        new Optional()
-    };
+    public static final CellProcessor CSV[] = csvProcessors(null);
+    
+    /**
+     * Creates CSV cell processors.
+     * @param pool pool used to intern currency, country and amounts (may be null)
+     * @return the processors
+     */
+    public static CellProcessor[] csvProcessors(InternPool pool) {
+        return new CellProcessor[] {
+            new NotNull(),
+            null,
+            new ParseLong(),
+            null,
+            null,
+            null,
+            null,
+            null,
+            null,
+            new NotNull(new Intern(pool)),
+            new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US), new Intern(pool)),
+            new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US), new Intern(pool)),
+            new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US), new Intern(pool)),
+            null,
+            null,
+            null,
+            new Optional(new Intern(pool))
+        };
+    }
 
     public String getId() {
         return id;
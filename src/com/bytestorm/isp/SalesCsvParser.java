@@ -0,0 +1,144 @@
+package com.bytestorm.isp;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.math.BigDecimal;
+
+/**
+ * Play sales report parser which reads only sales of pending transactions. Order id is looked up in
+ * {@link OrderIndex} directly from raw CSV bytes before any other column is touched, rows of other orders are skipped
+ * without decoding and only columns used by VAT processing (see {@link Sale#MAPPING}) are parsed. Reading stops as
+ * soon as index has no pending transactions left. Parser is not thread safe, but many parsers may share single index.
+ */
+public class SalesCsvParser implements Closeable {
+
+    /**
+     * @param tokenizer tokenizer with report data (closed with parser)
+     * @param index index of pending transactions, matched entries are claimed
+     * @param pool pool used to intern currency, country and amounts (may be null)
+     */
+    public SalesCsvParser(CsvTokenizer tokenizer, OrderIndex index, InternPool pool) {
+        this.tokenizer = tokenizer;
+        this.index = index;
+        this.pool = pool;
+    }
+
+    /**
+     * Skips header row.
+     */
+    public void skipHeader() throws IOException {
+        tokenizer.nextRecord();
+    }
+
+    /**
+     * Reads next sale of pending transaction, its index entry is claimed and transaction row is available through
+     * {@link #getMatchedRow()}.
+     * @return sale (only id, currency, price, tax and country are set) or null if there are no more pending sales
+     * @throws IOException if matched row is malformed
+     */
+    public Sale read() throws IOException {
+        while (index.getPendingCount() > 0 && tokenizer.nextRecord()) {
+            if (tokenizer.getFieldsCount() <= COL_ID) {
+                throw invalidRow("expected " + COLUMNS_COUNT + " columns but found " + tokenizer.getFieldsCount());
+            }
+            final int row = claim();
+            if (OrderIndex.NOT_FOUND == row) {
+                skipped++;
+                continue;
+            }
+            if (COLUMNS_COUNT != tokenizer.getFieldsCount()) {
+                throw invalidRow("expected " + COLUMNS_COUNT + " columns but found " + tokenizer.getFieldsCount());
+            }
+            final Sale sale = new Sale();
+            try {
+                sale.setId(tokenizer.getString(COL_ID));
+                sale.setBuyerCurrency(intern(requireString(COL_BUYER_CURRENCY)));
+                sale.setPrice(intern(requireDecimal(COL_PRICE)));
+                sale.setTaxCollected(intern(requireDecimal(COL_TAX_COLLECTED)));
+                sale.setBuyerCountry(intern(tokenizer.getString(COL_BUYER_COUNTRY)));
+            } catch (NumberFormatException ex) {
+                throw invalidRow("cannot parse number (" + ex.getMessage() + ")");
+            }
+            matchedRow = row;
+            return sale;
+        }
+        return null;
+    }
+
+    /**
+     * Transaction row of last read sale.
+     * @return the row
+     */
+    public int getMatchedRow() {
+        return matchedRow;
+    }
+
+    /**
+     * Number of rows skipped (not matching any pending transaction).
+     * @return skipped rows count
+     */
+    public int getSkippedCount() {
+        return skipped;
+    }
+
+    public int getRowNumber() {
+        return tokenizer.getRowNumber();
+    }
+
+    @Override
+    public void close() throws IOException {
+        tokenizer.close();
+    }
+
+    private int claim() throws IOException {
+        if (tokenizer.isNull(COL_ID)) {
+            throw invalidRow("missing value in column " + (COL_ID + 1));
+        }
+        if (tokenizer.isQuoted(COL_ID)) {
+            return index.claim(tokenizer.getString(COL_ID));
+        }
+        return index.claim(tokenizer.getBuffer(), tokenizer.getFieldOffset(COL_ID), tokenizer.getFieldLength(COL_ID));
+    }
+
+    private String intern(String value) {
+        return null != pool ? pool.intern(value) : value;
+    }
+
+    private BigDecimal intern(BigDecimal value) {
+        return null != pool ? pool.intern(value) : value;
+    }
+
+    private String requireString(int field) throws IOException {
+        final String str = tokenizer.getString(field);
+        if (null == str) {
+            throw invalidRow("missing value in column " + (field + 1));
+        }
+        return str;
+    }
+
+    private BigDecimal requireDecimal(int field) throws IOException {
+        final BigDecimal value = tokenizer.getDecimal(field);
+        if (null == value) {
+            throw invalidRow("missing value in column " + (field + 1));
+        }
+        return value;
+    }
+
+    private IOException invalidRow(String reason) {
+        return new IOException("Invalid row " + tokenizer.getRowNumber() + " - " + reason + "\n" + tokenizer.getRawRecord());
+    }
+
+    private final CsvTokenizer tokenizer;
+    private final OrderIndex index;
+    private final InternPool pool;
+    private int matchedRow = OrderIndex.NOT_FOUND;
+    private int skipped;
+
+    // column indexes (see Sale.MAPPING)
+    private static final int COL_ID = 0;
+    private static final int COL_BUYER_CURRENCY = 9;
+    private static final int COL_PRICE = 10;
+    private static final int COL_TAX_COLLECTED = 11;
+    private static final int COL_BUYER_COUNTRY = 16;
+    private static final int COLUMNS_COUNT = 17;
+}
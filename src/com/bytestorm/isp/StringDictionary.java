@@ -0,0 +1,59 @@
+package com.bytestorm.isp;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Dictionary encoding of low cardinality string values (currencies, countries, SKUs etc.) to dense int codes.
+ * Null value is encoded as -1. Encoding is not thread safe.
+ */
+public class StringDictionary {
+    public static final int NULL = -1;
+
+    public int encode(String value) {
+        if (null == value) {
+            return NULL;
+        }
+        Integer code = codes.get(value);
+        if (null == code) {
+            code = values.size();
+            codes.put(value, code);
+            values.add(value);
+        }
+        return code;
+    }
+
+    /**
+     * Encodes all values of other dictionary.
+     * @param other the dictionary
+     * @return codes in this dictionary indexed by other dictionary codes
+     */
+    public int[] encodeAll(StringDictionary other) {
+        final int[] retval = new int[other.size()];
+        for (int code = 0; code < retval.length; code++) {
+            retval[code] = encode(other.decode(code));
+        }
+        return retval;
+    }
+
+    /**
+     * Looks up code of already encoded value.
+     * @param value the value
+     * @return code or {@link #NULL} if value is not present in dictionary
+     */
+    public int lookup(String value) {
+        final Integer code = null != value ? codes.get(value) : null;
+        return null != code ? code : NULL;
+    }
+
+    public String decode(int code) {
+        return NULL != code ? values.get(code) : null;
+    }
+
+    public int size() {
+        return values.size();
+    }
+
+    private final HashMap<String, Integer> codes = new HashMap<>();
+    private final ArrayList<String> values = new ArrayList<>();
+}
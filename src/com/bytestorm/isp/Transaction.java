@@ -11,7 +11,6 @@ import java.util.TimeZone;
 import org.supercsv.cellprocessor.HashMapper;
 import org.supercsv.cellprocessor.Optional;
 import org.supercsv.cellprocessor.ParseBigDecimal;
-import org.supercsv.cellprocessor.ParseDate;
 import org.supercsv.cellprocessor.ParseInt;
 import org.supercsv.cellprocessor.constraint.NotNull;
 import org.supercsv.cellprocessor.ift.CellProcessor;
@@ -41,6 +40,12 @@ public class Transaction {
         }
     }
     
+    // shared (thread safe) date and time columns parsers
+    public static final CachedDateParser DATE_PARSER = 
+            new CachedDateParser("MMM d, yyyy", true, Locale.US, TimeZone.getTimeZone("UTC"));
+    public static final CachedDateParser TIME_PARSER = 
+            new CachedDateParser("h:mm:ss a", true, Locale.US, null, 24 * 60 * 60);
+    
     // input CSV structure
     public static final String MAPPING[] = new String[] {
             "id",
@@ -63,27 +68,36 @@ public class Transaction {
             "merchantCurrency",
             "payout",
     };
-    public static final CellProcessor CSV[] = new CellProcessor[] {
-            new Optional(),
-            new ParseDateEx("MMM d, yyyy", true, Locale.US, TimeZone.getTimeZone("UTC")),
-            new ParseDate("h:mm:ss a", true, Locale.US),
-            new Optional(),
-            new Optional(new HashMapper(Type.MAP)),
-            new Optional(),
-            new Optional(),
-            new Optional(),
-            new Optional(new ParseInt()),
-            new Optional(),
-            new Optional(),
-            new Optional(),
-            new Optional(),
-            new Optional(),
-            new NotNull(),
-            new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US)),
-            new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US)),
-            new NotNull(),
-            new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US)),
-    };
+    public static final CellProcessor CSV[] = csvProcessors(null);
+
+    /**
+     * Creates input CSV cell processors.
+     * @param pool pool used to intern low cardinality columns and amounts (may be null)
+     * @return the processors
+     */
+    public static CellProcessor[] csvProcessors(InternPool pool) {
+        return new CellProcessor[] {
+                new Optional(),
+                new ParseDateEx(DATE_PARSER),
+                new ParseDateEx(TIME_PARSER),
+                new Optional(new Intern(pool)),
+                new Optional(new HashMapper(Type.MAP)),
+                new Optional(),
+                new Optional(new Intern(pool)),
+                new Optional(new Intern(pool)),
+                new Optional(new ParseInt()),
+                new Optional(new Intern(pool)),
+                new Optional(new Intern(pool)),
+                new Optional(new Intern(pool)),
+                new Optional(),
+                new Optional(),
+                new NotNull(new Intern(pool)),
+                new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US), new Intern(pool)),
+                new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US), new Intern(pool)),
+                new NotNull(new Intern(pool)),
+                new ParseBigDecimal(DecimalFormatSymbols.getInstance(Locale.US)),
+        };
+    }
 
     public Transaction() {
     }
@@ -447,6 +461,7 @@ public class Transaction {
     private BigDecimal conversionRate;
     private String merchantCurrency;
     private BigDecimal payout;
-    private int conversionRateBaseAmount;    
+    // earnings report rate is quoted for single unit (replaced with NBP table base when xchange data is used)
+    private int conversionRateBaseAmount = 1;    
     private BigDecimal taxAmount;    
 }
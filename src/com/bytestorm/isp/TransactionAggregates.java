@@ -0,0 +1,352 @@
+package com.bytestorm.isp;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * All aggregates needed by output sheets and processing statistics computed in single pass over transactions: pivot
+ * (day x currency) report, collected VAT per currency, summary totals, per SKU counters and amounts precision per
+ * currency. Amounts are accumulated as exact sums (in micro units where possible, see {@link Money.Sum}).
+ */
+public class TransactionAggregates {
+
+    /**
+     * Per SKU transactions counters.
+     */
+    public static class SkuStats {
+        int sells;
+        int refunds;
+
+        private SkuStats() {
+        }
+
+        public int getSells() {
+            return sells;
+        }
+
+        public int getRefunds() {
+            return refunds;
+        }
+    }
+
+    /**
+     * @param vatCurrencies currencies for which VAT is collected
+     * @param vat determine if VAT data is available (transactions were matched with sales reports)
+     */
+    public TransactionAggregates(Set<String> vatCurrencies, boolean vat) {
+        this.vatCurrencies = vatCurrencies;
+        this.vat = vat;
+    }
+
+    /**
+     * Computes aggregates of all transactions in table.
+     * @param transactions the transactions sorted by date (see {@link TransactionTable#sortByDate()})
+     * @param vatCurrencies currencies for which VAT is collected
+     * @param vat determine if VAT data is available
+     * @return the aggregates
+     */
+    public static TransactionAggregates of(TransactionTable transactions, Set<String> vatCurrencies, boolean vat) {
+        if (0 == transactions.size()) {
+            throw new IllegalArgumentException("Transaction list is empty");
+        }
+        final TransactionAggregates aggregates = new TransactionAggregates(vatCurrencies, vat);
+        for (int day = 0, days = transactions.getDaysCount(); day < days; day++) {
+            for (int row = transactions.getDayStart(day), end = transactions.getDayEnd(day); row < end; row++) {
+                aggregates.add(transactions, row);
+            }
+        }
+        return aggregates;
+    }
+
+    public void add(TransactionTable transactions, int row) {
+        final Transaction.Type type = transactions.getTransactionType(row);
+        final String currency = transactions.getBuyerCurrency(row);
+        final boolean order = transactions.hasId(row);
+        final long amount = transactions.getAmountMoney(row);
+        final long payout = transactions.getPayoutMoney(row);
+        final long amountConverted = transactions.getAmountConvertedMoney(row);
+        if (Money.INEXACT != amount && Money.INEXACT != payout && Money.INEXACT != amountConverted) {
+            add(transactions.getEpochDay(row), type, order, transactions.getSkuId(row), currency, amount, payout,
+                    amountConverted, transactions.isAmountFractional(row));
+        } else {
+            add(transactions.getEpochDay(row), type, order, transactions.getSkuId(row), currency,
+                    transactions.getAmount(row), transactions.getPayout(row), transactions.getAmountConverted(row),
+                    transactions.isAmountFractional(row));
+        }
+        if (order && vat && Transaction.Type.CHARGE == type && vatCurrencies.contains(currency)) {
+            final long tax = transactions.getTaxAmountMoney(row);
+            final long taxConverted = transactions.getTaxAmountConvertedMoney(row);
+            if (Money.INEXACT != tax && Money.INEXACT != taxConverted) {
+                addVat(currency, tax, taxConverted);
+            } else {
+                addVat(currency, transactions.getTaxAmount(row), transactions.getTaxAmountConverted(row));
+            }
+        }
+    }
+
+    /**
+     * Adds single transaction (without VAT, which is known only after matching with sales, see
+     * {@link #addVat(String, long, long)}).
+     * @param transaction the transaction
+     * @param rate rate used to convert amount to local currency (scaled by {@link TransactionTable#RATE_SCALE}),
+     *        ignored if transaction is in merchant currency
+     * @param base rate base amount
+     */
+    public void add(Transaction transaction, long rate, int base) {
+        add(transaction, rate, null, base);
+    }
+
+    /**
+     * Adds single transaction converted with its own (earnings report) conversion rate, see
+     * {@link #add(Transaction, long, int)}.
+     * @param transaction the transaction
+     */
+    public void add(Transaction transaction) {
+        final long rate = Money.toScaled(transaction.getConversionRate(), TransactionTable.RATE_SCALE);
+        add(transaction, rate, Money.INEXACT == rate ? transaction.getConversionRate() : null, 
+                transaction.getConversionRateBaseAmount());
+    }
+
+    // decimal rate is used (if not null) when rate cannot be scaled exactly
+    private void add(Transaction transaction, long rate, BigDecimal decimalRate, int base) {
+        final int epochDay = (int) Math.floorDiv(transaction.getDate().getTime(), MILLIS_PER_DAY);
+        final boolean merchantCurrency = transaction.getBuyerCurrency().equals(transaction.getMerchantCurrency());
+        final long amount = Money.of(transaction.getAmount());
+        final long payout = Money.of(transaction.getPayout());
+        final long amountConverted = merchantCurrency ? amount 
+                : Money.convert(amount, rate, TransactionTable.RATE_SCALE, base);
+        final boolean fractional = transaction.getAmount().scale() > 0;
+        if (Money.INEXACT != amount && Money.INEXACT != payout && Money.INEXACT != amountConverted) {
+            add(epochDay, transaction.getTransactionType(), null != transaction.getId(), transaction.getSkuId(),
+                    transaction.getBuyerCurrency(), amount, payout, amountConverted, fractional);
+        } else {
+            add(epochDay, transaction.getTransactionType(), null != transaction.getId(), transaction.getSkuId(),
+                    transaction.getBuyerCurrency(), transaction.getAmount(), transaction.getPayout(), 
+                    merchantCurrency ? transaction.getAmount() : Money.convert(transaction.getAmount(), 
+                            null != decimalRate ? decimalRate : BigDecimal.valueOf(rate, TransactionTable.RATE_SCALE), 
+                            base), fractional);
+        }
+    }
+
+    /**
+     * Adds VAT collected from single EU charge.
+     * @param currency buyer currency
+     * @param tax tax amount in micro units
+     * @param taxConverted tax amount converted to local currency in micro units
+     */
+    public void addVat(String currency, long tax, long taxConverted) {
+        final Money.Sum[] collected = vatCollected(currency);
+        collected[0].add(tax);
+        collected[1].add(taxConverted);
+        totalVat.add(taxConverted);
+    }
+
+    /**
+     * Adds VAT collected from single EU charge (values which cannot be stored in micro units).
+     * @param currency buyer currency
+     * @param tax tax amount
+     * @param taxConverted tax amount converted to local currency
+     */
+    public void addVat(String currency, BigDecimal tax, BigDecimal taxConverted) {
+        final Money.Sum[] collected = vatCollected(currency);
+        collected[0].add(tax);
+        collected[1].add(taxConverted);
+        totalVat.add(taxConverted);
+    }
+
+    /**
+     * Adds all aggregates of other instance (e.g. computed for single report).
+     * @param other the aggregates to merge
+     */
+    public void merge(TransactionAggregates other) {
+        pivot.merge(other.pivot);
+        for (Map.Entry<String, Money.Sum[]> e : other.vatCollected.entrySet()) {
+            final Money.Sum[] collected = vatCollected(e.getKey());
+            collected[0].add(e.getValue()[0]);
+            collected[1].add(e.getValue()[1]);
+        }
+        for (Map.Entry<String, SkuStats> e : other.skuStats.entrySet()) {
+            final SkuStats stats = skuStats(e.getKey());
+            stats.sells += e.getValue().sells;
+            stats.refunds += e.getValue().refunds;
+        }
+        for (Map.Entry<String, Boolean> e : other.fractionalCurrencies.entrySet()) {
+            if (e.getValue() || !fractionalCurrencies.containsKey(e.getKey())) {
+                fractionalCurrencies.put(e.getKey(), e.getValue());
+            }
+        }
+        income.add(other.income);
+        taxDeduction.add(other.taxDeduction);
+        totalPayout.add(other.totalPayout);
+        totalPayoutFromEU.add(other.totalPayoutFromEU);
+        totalConverted.add(other.totalConverted);
+        totalTaxDeduction.add(other.totalTaxDeduction);
+        totalVat.add(other.totalVat);
+    }
+
+    public boolean isEmpty() {
+        return pivot.getSummary().isEmpty();
+    }
+
+    private void add(int epochDay, Transaction.Type type, boolean order, String sku, String currency, long amount,
+            long payout, long amountConverted, boolean fractional) {
+        pivot.add(epochDay, currency, amount, payout, amountConverted);
+        addStats(type, sku, currency, fractional);
+        // summary sheet
+        income.add(payout);
+        totalPayout.add(payout);
+        if (Transaction.Type.TAX == type) {
+            taxDeduction.add(payout);
+        }
+        if (!order) {
+            totalTaxDeduction.add(payout);
+            totalConverted.add(payout);
+        } else {
+            if (vatCurrencies.contains(currency)) {
+                totalPayoutFromEU.add(payout);
+            }
+            totalConverted.add(amountConverted);
+        }
+    }
+
+    // same as above for values which cannot be stored in micro units
+    private void add(int epochDay, Transaction.Type type, boolean order, String sku, String currency, 
+            BigDecimal amount, BigDecimal payout, BigDecimal amountConverted, boolean fractional) {
+        pivot.add(epochDay, currency, amount, payout, amountConverted);
+        addStats(type, sku, currency, fractional);
+        income.add(payout);
+        totalPayout.add(payout);
+        if (Transaction.Type.TAX == type) {
+            taxDeduction.add(payout);
+        }
+        if (!order) {
+            totalTaxDeduction.add(payout);
+            totalConverted.add(payout);
+        } else {
+            if (vatCurrencies.contains(currency)) {
+                totalPayoutFromEU.add(payout);
+            }
+            totalConverted.add(amountConverted);
+        }
+    }
+
+    // processing statistics and amount precision (fraction part presence in report, as in 2.00, not value)
+    private void addStats(Transaction.Type type, String sku, String currency, boolean fractional) {
+        if (Transaction.Type.TAX != type) {
+            final SkuStats stats = skuStats(sku);
+            if (Transaction.Type.CHARGE == type) {
+                stats.sells++;
+            } else if (Transaction.Type.REFUND == type) {
+                stats.refunds++;
+            }
+        }
+        if (fractional) {
+            fractionalCurrencies.put(currency, Boolean.TRUE);
+        } else if (!fractionalCurrencies.containsKey(currency)) {
+            fractionalCurrencies.put(currency, Boolean.FALSE);
+        }
+    }
+
+    private Money.Sum[] vatCollected(String currency) {
+        Money.Sum[] collected = vatCollected.get(currency);
+        if (null == collected) {
+            collected = new Money.Sum[] { new Money.Sum(), new Money.Sum() };
+            vatCollected.put(currency, collected);
+        }
+        return collected;
+    }
+
+    private SkuStats skuStats(String sku) {
+        SkuStats stats = skuStats.get(sku);
+        if (null == stats) {
+            stats = new SkuStats();
+            skuStats.put(sku, stats);
+        }
+        return stats;
+    }
+
+    public MonthlyPivotReport getPivot() {
+        return pivot;
+    }
+
+    /**
+     * Collected VAT per currency.
+     * @return map of currency to array with VAT in given currency and converted VAT (sorted by currency)
+     */
+    public Map<String, Money.Sum[]> getVatCollected() {
+        return Collections.unmodifiableMap(vatCollected);
+    }
+
+    public Map<String, SkuStats> getSkuStats() {
+        return Collections.unmodifiableMap(skuStats);
+    }
+
+    /**
+     * Checks if any amount in given currency has fraction part.
+     * @param currency the currency
+     * @return true if fraction digits should be presented
+     */
+    public boolean isFractional(String currency) {
+        return Boolean.TRUE.equals(fractionalCurrencies.get(currency));
+    }
+
+    /**
+     * Sum of all payouts.
+     * @return income
+     */
+    public Money.Sum getIncome() {
+        return income;
+    }
+
+    /**
+     * Sum of payouts of tax transactions.
+     * @return tax deduction
+     */
+    public Money.Sum getTaxDeduction() {
+        return taxDeduction;
+    }
+
+    public Money.Sum getTotalPayout() {
+        return totalPayout;
+    }
+
+    public Money.Sum getTotalPayoutFromEU() {
+        return totalPayoutFromEU;
+    }
+
+    public Money.Sum getTotalConverted() {
+        return totalConverted;
+    }
+
+    /**
+     * Sum of payouts of transactions without id (tax deductions not assigned to any order).
+     * @return total tax deduction
+     */
+    public Money.Sum getTotalTaxDeduction() {
+        return totalTaxDeduction;
+    }
+
+    public Money.Sum getTotalVat() {
+        return totalVat;
+    }
+
+    private final Set<String> vatCurrencies;
+    private final boolean vat;
+    private final MonthlyPivotReport pivot = new MonthlyPivotReport();
+    private final TreeMap<String, Money.Sum[]> vatCollected = new TreeMap<>();
+    private final HashMap<String, SkuStats> skuStats = new HashMap<>();
+    private final HashMap<String, Boolean> fractionalCurrencies = new HashMap<>();
+    private final Money.Sum income = new Money.Sum();
+    private final Money.Sum taxDeduction = new Money.Sum();
+    private final Money.Sum totalPayout = new Money.Sum();
+    private final Money.Sum totalPayoutFromEU = new Money.Sum();
+    private final Money.Sum totalConverted = new Money.Sum();
+    private final Money.Sum totalTaxDeduction = new Money.Sum();
+    private final Money.Sum totalVat = new Money.Sum();
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+}
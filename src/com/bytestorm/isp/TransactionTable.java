@@ -0,0 +1,656 @@
+package com.bytestorm.isp;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Columnar in-memory transactions store. Dates are kept as epoch days, amounts as scaled longs, order ids as UTF-8
+ * bytes in single arena array and low cardinality string columns (currencies, country, SKU, product name) as
+ * dictionary codes, so single row takes few dozens bytes instead of hundreds needed by {@link Transaction} bean. Only columns used by output sheets are kept. Rare values
+ * with more fraction digits than column scale are kept aside as decimals (scaled column holds {@link Money#INEXACT}).
+ */
+public class TransactionTable {
+    // number of fraction digits of amount columns (see Money)
+    public static final int AMOUNT_SCALE = Money.SCALE;
+    // number of fraction digits of conversion rate column
+    public static final int RATE_SCALE = 10;
+
+    public TransactionTable() {
+        this(1024);
+    }
+
+    public TransactionTable(int capacity) {
+        capacity = Math.max(16, capacity);
+        idOffsets = new int[capacity];
+        idLengths = new int[capacity];
+        idBytes = new byte[capacity * ID_BYTES_HINT];
+        epochDays = new int[capacity];
+        times = new int[capacity];
+        types = new byte[capacity];
+        products = new int[capacity];
+        skus = new int[capacity];
+        countries = new int[capacity];
+        buyerCurrencies = new int[capacity];
+        merchantCurrencies = new int[capacity];
+        amounts = new long[capacity];
+        payouts = new long[capacity];
+        conversionRates = new long[capacity];
+        conversionRateBases = new int[capacity];
+        taxAmounts = new long[capacity];
+    }
+
+    /**
+     * Appends transaction to table.
+     * @param t the transaction
+     * @return row index
+     */
+    public int add(Transaction t) {
+        if (size == epochDays.length) {
+            grow(size * 2);
+        }
+        final int row = size++;
+        days = null;
+        dayOffsets = null;
+        appendId(row, t.getId());
+        epochDays[row] = (int) Math.floorDiv(t.getDate().getTime(), MILLIS_PER_DAY);
+        times[row] = null != t.getTime() ? (int) t.getTime().getTime() : 0;
+        types[row] = (byte) ((null != t.getTransactionType() ? t.getTransactionType().ordinal() : NULL_TYPE)
+                | (null != t.getAmount() && t.getAmount().scale() > 0 ? FRACTIONAL_AMOUNT : 0));
+        products[row] = productDictionary.encode(t.getProductName());
+        skus[row] = skuDictionary.encode(t.getSkuId());
+        countries[row] = countryDictionary.encode(t.getBuyerCountry());
+        buyerCurrencies[row] = currencyDictionary.encode(t.getBuyerCurrency());
+        merchantCurrencies[row] = currencyDictionary.encode(t.getMerchantCurrency());
+        amounts[row] = scale(row, AMOUNT, t.getAmount(), AMOUNT_SCALE);
+        payouts[row] = scale(row, PAYOUT, t.getPayout(), AMOUNT_SCALE);
+        conversionRates[row] = scale(row, RATE, t.getConversionRate(), RATE_SCALE);
+        conversionRateBases[row] = t.getConversionRateBaseAmount();
+        taxAmounts[row] = null != t.getTaxAmount() ? scale(row, TAX, t.getTaxAmount(), AMOUNT_SCALE) : NULL_AMOUNT;
+        return row;
+    }
+
+    /**
+     * Appends all rows of other table (e.g. single report chunk), rows order is preserved.
+     * @param other the table
+     */
+    public void addAll(TransactionTable other) {
+        if (size + other.size > epochDays.length) {
+            grow(Math.max(size * 2, size + other.size));
+        }
+        days = null;
+        dayOffsets = null;
+        // dictionary codes of other table are translated to codes of this one
+        final int[] productCodes = productDictionary.encodeAll(other.productDictionary);
+        final int[] skuCodes = skuDictionary.encodeAll(other.skuDictionary);
+        final int[] countryCodes = countryDictionary.encodeAll(other.countryDictionary);
+        final int[] currencyCodes = currencyDictionary.encodeAll(other.currencyDictionary);
+        // ids arena of other table is appended as whole
+        growIdBytes(idBytesSize + other.idBytesSize);
+        System.arraycopy(other.idBytes, 0, idBytes, idBytesSize, other.idBytesSize);
+        System.arraycopy(other.idLengths, 0, idLengths, size, other.size);
+        System.arraycopy(other.epochDays, 0, epochDays, size, other.size);
+        System.arraycopy(other.times, 0, times, size, other.size);
+        System.arraycopy(other.types, 0, types, size, other.size);
+        System.arraycopy(other.amounts, 0, amounts, size, other.size);
+        System.arraycopy(other.payouts, 0, payouts, size, other.size);
+        System.arraycopy(other.conversionRates, 0, conversionRates, size, other.size);
+        System.arraycopy(other.conversionRateBases, 0, conversionRateBases, size, other.size);
+        System.arraycopy(other.taxAmounts, 0, taxAmounts, size, other.size);
+        for (Map.Entry<Integer, BigDecimal[]> e : other.decimals.entrySet()) {
+            decimals.put(size + e.getKey(), e.getValue().clone());
+        }
+        for (int i = 0; i < other.size; i++) {
+            final int row = size + i;
+            idOffsets[row] = idBytesSize + other.idOffsets[i];
+            products[row] = translate(productCodes, other.products[i]);
+            skus[row] = translate(skuCodes, other.skus[i]);
+            countries[row] = translate(countryCodes, other.countries[i]);
+            buyerCurrencies[row] = translate(currencyCodes, other.buyerCurrencies[i]);
+            merchantCurrencies[row] = translate(currencyCodes, other.merchantCurrencies[i]);
+        }
+        idBytesSize += other.idBytesSize;
+        size += other.size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getId(int row) {
+        return NULL_ID != idLengths[row] ? new String(idBytes, idOffsets[row], idLengths[row], StandardCharsets.UTF_8)
+                : null;
+    }
+
+    /**
+     * Checks if transaction has order id (tax deductions have none), without decoding it.
+     * @param row row index
+     * @return true if id is present
+     */
+    public boolean hasId(int row) {
+        return NULL_ID != idLengths[row];
+    }
+
+    /**
+     * Arena with UTF-8 encoded order ids (see {@link #getIdOffset(int)}), valid only until next row is added.
+     * @return the buffer
+     */
+    public byte[] getIdBuffer() {
+        return idBytes;
+    }
+
+    /**
+     * Order id offset in {@link #getIdBuffer()}.
+     * @param row row index
+     * @return the offset
+     */
+    public int getIdOffset(int row) {
+        return idOffsets[row];
+    }
+
+    /**
+     * Order id length in bytes.
+     * @param row row index
+     * @return the length or -1 if transaction has no id
+     */
+    public int getIdLength(int row) {
+        return idLengths[row];
+    }
+
+    public int getEpochDay(int row) {
+        return epochDays[row];
+    }
+
+    public Date getDate(int row) {
+        return new Date(epochDays[row] * MILLIS_PER_DAY);
+    }
+
+    public Date getTime(int row) {
+        return new Date(times[row]);
+    }
+
+    public Transaction.Type getTransactionType(int row) {
+        final int type = types[row] & TYPE_MASK;
+        return NULL_TYPE != type ? TYPES[type] : null;
+    }
+
+    /**
+     * Checks if amount was written in report with fraction part (even if it is zero e.g. 2.00), which determines
+     * amount format of currency. Scale of amount is not kept by table so it is recorded on add.
+     * @param row row index
+     * @return true if amount has fraction digits
+     */
+    public boolean isAmountFractional(int row) {
+        return 0 != (types[row] & FRACTIONAL_AMOUNT);
+    }
+
+    public String getProductName(int row) {
+        return productDictionary.decode(products[row]);
+    }
+
+    public String getSkuId(int row) {
+        return skuDictionary.decode(skus[row]);
+    }
+
+    public String getBuyerCountry(int row) {
+        return countryDictionary.decode(countries[row]);
+    }
+
+    public String getBuyerCurrency(int row) {
+        return currencyDictionary.decode(buyerCurrencies[row]);
+    }
+
+    /**
+     * Buyer currency dictionary code.
+     * @param row row index
+     * @return the code (see {@link #getCurrencies()})
+     */
+    public int getBuyerCurrencyCode(int row) {
+        return buyerCurrencies[row];
+    }
+
+    public String getMerchantCurrency(int row) {
+        return currencyDictionary.decode(merchantCurrencies[row]);
+    }
+
+    /**
+     * Checks if transaction was made in merchant currency (no conversion needed).
+     * @param row row index
+     * @return true if buyer and merchant currencies are same
+     */
+    public boolean isMerchantCurrency(int row) {
+        return buyerCurrencies[row] == merchantCurrencies[row];
+    }
+
+    public BigDecimal getAmount(int row) {
+        return toDecimal(row, AMOUNT, amounts[row], AMOUNT_SCALE);
+    }
+
+    /**
+     * Amount in micro units (see {@link Money}).
+     * @param row row index
+     * @return the amount or {@link Money#INEXACT} (see {@link #getAmount(int)})
+     */
+    public long getAmountMoney(int row) {
+        return amounts[row];
+    }
+
+    public BigDecimal getPayout(int row) {
+        return toDecimal(row, PAYOUT, payouts[row], AMOUNT_SCALE);
+    }
+
+    /**
+     * Payout in micro units (see {@link Money}).
+     * @param row row index
+     * @return the payout or {@link Money#INEXACT} (see {@link #getPayout(int)})
+     */
+    public long getPayoutMoney(int row) {
+        return payouts[row];
+    }
+
+    public BigDecimal getConversionRate(int row) {
+        return toDecimal(row, RATE, conversionRates[row], RATE_SCALE);
+    }
+
+    public int getConversionRateBaseAmount(int row) {
+        return conversionRateBases[row];
+    }
+
+    public void setConversionRate(int row, int baseAmount, BigDecimal rate) {
+        conversionRateBases[row] = baseAmount;
+        conversionRates[row] = scale(row, RATE, rate, RATE_SCALE);
+    }
+
+    /**
+     * Sets conversion rate already scaled by {@link #RATE_SCALE}.
+     * @param row the row
+     * @param baseAmount number of currency units the rate is quoted for
+     * @param rate scaled rate
+     */
+    public void setConversionRate(int row, int baseAmount, long rate) {
+        conversionRateBases[row] = baseAmount;
+        conversionRates[row] = rate;
+        final BigDecimal[] values = decimals.get(row);
+        if (null != values) {
+            values[RATE] = null;
+        }
+    }
+
+    public BigDecimal getTaxAmount(int row) {
+        return NULL_AMOUNT != taxAmounts[row] ? toDecimal(row, TAX, taxAmounts[row], AMOUNT_SCALE) : null;
+    }
+
+    /**
+     * Tax amount in micro units (see {@link Money}).
+     * @param row row index
+     * @return the tax amount or {@link Money#INEXACT} (see {@link #getTaxAmount(int)})
+     */
+    public long getTaxAmountMoney(int row) {
+        return requireTaxAmount(row);
+    }
+
+    public void setTaxAmount(int row, BigDecimal taxAmount) {
+        taxAmounts[row] = null != taxAmount ? scale(row, TAX, taxAmount, AMOUNT_SCALE) : NULL_AMOUNT;
+    }
+
+    public BigDecimal getAmountConverted(int row) {
+        final long money = getAmountConvertedMoney(row);
+        return Money.INEXACT != money ? Money.toDecimal(money) : convert(row, getAmount(row));
+    }
+
+    /**
+     * Amount converted to merchant currency in micro units (see {@link Money}).
+     * @param row row index
+     * @return converted amount or {@link Money#INEXACT} (see {@link #getAmountConverted(int)})
+     */
+    public long getAmountConvertedMoney(int row) {
+        return convert(row, amounts[row]);
+    }
+
+    public BigDecimal getSpread(int row) {
+        if (isMerchantCurrency(row)) {
+            return BigDecimal.ZERO;
+        }
+        final long converted = getAmountConvertedMoney(row);
+        if (Money.INEXACT != payouts[row] && Money.INEXACT != converted) {
+            return Money.toDecimal(Money.subtract(payouts[row], converted));
+        }
+        return getPayout(row).subtract(getAmountConverted(row));
+    }
+
+    public BigDecimal getTaxAmountConverted(int row) {
+        final long money = getTaxAmountConvertedMoney(row);
+        return Money.INEXACT != money ? Money.toDecimal(money) : convert(row, getTaxAmount(row));
+    }
+
+    /**
+     * Tax amount converted to merchant currency in micro units (see {@link Money}).
+     * @param row row index
+     * @return converted tax amount or {@link Money#INEXACT} (see {@link #getTaxAmountConverted(int)})
+     */
+    public long getTaxAmountConvertedMoney(int row) {
+        return convert(row, requireTaxAmount(row));
+    }
+
+    /**
+     * Currencies dictionary (shared by buyer and merchant currency columns).
+     * @return the dictionary
+     */
+    public StringDictionary getCurrencies() {
+        return currencyDictionary;
+    }
+
+    /**
+     * Sorts rows by date, sort is stable so order of transactions within single day is preserved. Rows are bucketed by
+     * epoch day (counting sort, linear time since reports cover only few weeks), after sort rows of every day are
+     * available as continuous slice (see {@link #getDaysCount()}).
+     */
+    public void sortByDate() {
+        if (0 == size) {
+            days = new int[0];
+            dayOffsets = new int[] { 0 };
+            return;
+        }
+        int minDay = epochDays[0];
+        int maxDay = epochDays[0];
+        for (int i = 1; i < size; i++) {
+            minDay = Math.min(minDay, epochDays[i]);
+            maxDay = Math.max(maxDay, epochDays[i]);
+        }
+        final long range = (long) maxDay - minDay + 1;
+        if (range > Math.max(size, MAX_DAY_BUCKETS)) {
+            // dates spread over ages (broken input), buckets would take more memory than rows
+            sortByDateComparing();
+            return;
+        }
+        final int[] starts = new int[(int) range + 1];
+        for (int i = 0; i < size; i++) {
+            starts[epochDays[i] - minDay + 1]++;
+        }
+        int daysCount = 0;
+        for (int bucket = 0; bucket < range; bucket++) {
+            if (0 != starts[bucket + 1]) {
+                daysCount++;
+            }
+            starts[bucket + 1] += starts[bucket];
+        }
+        days = new int[daysCount];
+        dayOffsets = new int[daysCount + 1];
+        for (int bucket = 0, day = 0; bucket < range; bucket++) {
+            if (starts[bucket] != starts[bucket + 1]) {
+                days[day] = minDay + bucket;
+                dayOffsets[++day] = starts[bucket + 1];
+            }
+        }
+        final int[] permutation = new int[size];
+        for (int i = 0; i < size; i++) {
+            permutation[starts[epochDays[i] - minDay]++] = i;
+        }
+        reorder(permutation);
+    }
+
+    /**
+     * Number of distinct days (day slices) in table, available only after {@link #sortByDate()}.
+     * @return days count
+     */
+    public int getDaysCount() {
+        requireSorted();
+        return days.length;
+    }
+
+    /**
+     * Epoch day of given day slice.
+     * @param day slice index
+     * @return the epoch day
+     */
+    public int getDayEpochDay(int day) {
+        requireSorted();
+        return days[day];
+    }
+
+    /**
+     * First row of given day slice.
+     * @param day slice index
+     * @return row index
+     */
+    public int getDayStart(int day) {
+        requireSorted();
+        return dayOffsets[day];
+    }
+
+    /**
+     * Row after last row of given day slice.
+     * @param day slice index
+     * @return row index (exclusive)
+     */
+    public int getDayEnd(int day) {
+        requireSorted();
+        return dayOffsets[day + 1];
+    }
+
+    private void sortByDateComparing() {
+        final Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer o1, Integer o2) {
+                return Integer.compare(epochDays[o1], epochDays[o2]);
+            }
+        });
+        final int[] permutation = new int[size];
+        int daysCount = 0;
+        for (int i = 0; i < size; i++) {
+            permutation[i] = order[i];
+            if (0 == i || epochDays[permutation[i]] != epochDays[permutation[i - 1]]) {
+                daysCount++;
+            }
+        }
+        reorder(permutation);
+        days = new int[daysCount];
+        dayOffsets = new int[daysCount + 1];
+        for (int i = 0, day = 0; i < size; i++) {
+            if (0 == i || epochDays[i] != epochDays[i - 1]) {
+                days[day++] = epochDays[i];
+            }
+            dayOffsets[day] = i + 1;
+        }
+    }
+
+    private void requireSorted() {
+        if (null == days) {
+            throw new IllegalStateException("Transactions are not sorted by date");
+        }
+    }
+
+    // reorders all columns so new row i is old row permutation[i]
+    private void reorder(int[] permutation) {
+        // ids arena is not moved, only offsets are
+        idOffsets = permute(idOffsets, permutation);
+        idLengths = permute(idLengths, permutation);
+        epochDays = permute(epochDays, permutation);
+        times = permute(times, permutation);
+        types = permute(types, permutation);
+        products = permute(products, permutation);
+        skus = permute(skus, permutation);
+        countries = permute(countries, permutation);
+        buyerCurrencies = permute(buyerCurrencies, permutation);
+        merchantCurrencies = permute(merchantCurrencies, permutation);
+        amounts = permute(amounts, permutation);
+        payouts = permute(payouts, permutation);
+        conversionRates = permute(conversionRates, permutation);
+        conversionRateBases = permute(conversionRateBases, permutation);
+        taxAmounts = permute(taxAmounts, permutation);
+        if (!decimals.isEmpty()) {
+            final HashMap<Integer, BigDecimal[]> permuted = new HashMap<>();
+            for (int i = 0; i < permutation.length; i++) {
+                final BigDecimal[] values = decimals.get(permutation[i]);
+                if (null != values) {
+                    permuted.put(i, values);
+                }
+            }
+            decimals = permuted;
+        }
+    }
+
+    private long requireTaxAmount(int row) {
+        if (NULL_AMOUNT == taxAmounts[row]) {
+            throw new IllegalStateException("Tax amount of transaction " + getId(row) + " is unknown");
+        }
+        return taxAmounts[row];
+    }
+
+    private long convert(int row, long money) {
+        if (isMerchantCurrency(row)) {
+            return money;
+        }
+        return Money.convert(money, conversionRates[row], RATE_SCALE, conversionRateBases[row]);
+    }
+
+    private BigDecimal convert(int row, BigDecimal amount) {
+        if (isMerchantCurrency(row)) {
+            return amount;
+        }
+        return Money.convert(amount, getConversionRate(row), conversionRateBases[row]);
+    }
+
+    // scaled value, value which cannot be scaled exactly is kept as decimal
+    private long scale(int row, int column, BigDecimal value, int scale) {
+        final long scaled = Money.toScaled(value, scale);
+        BigDecimal[] values = decimals.get(row);
+        if (Money.INEXACT == scaled) {
+            if (null == values) {
+                values = new BigDecimal[DECIMAL_COLUMNS];
+                decimals.put(row, values);
+            }
+            values[column] = value;
+        } else if (null != values) {
+            values[column] = null;
+        }
+        return scaled;
+    }
+
+    private BigDecimal toDecimal(int row, int column, long scaled, int scale) {
+        return Money.INEXACT != scaled ? BigDecimal.valueOf(scaled, scale) : decimals.get(row)[column];
+    }
+
+    private void appendId(int row, String id) {
+        if (null == id) {
+            idOffsets[row] = idBytesSize;
+            idLengths[row] = NULL_ID;
+            return;
+        }
+        final byte[] bytes = id.getBytes(StandardCharsets.UTF_8);
+        growIdBytes(idBytesSize + bytes.length);
+        System.arraycopy(bytes, 0, idBytes, idBytesSize, bytes.length);
+        idOffsets[row] = idBytesSize;
+        idLengths[row] = bytes.length;
+        idBytesSize += bytes.length;
+    }
+
+    private void growIdBytes(int capacity) {
+        if (capacity > idBytes.length) {
+            idBytes = Arrays.copyOf(idBytes, Math.max(idBytes.length * 2, capacity));
+        }
+    }
+
+    private void grow(int capacity) {
+        idOffsets = Arrays.copyOf(idOffsets, capacity);
+        idLengths = Arrays.copyOf(idLengths, capacity);
+        epochDays = Arrays.copyOf(epochDays, capacity);
+        times = Arrays.copyOf(times, capacity);
+        types = Arrays.copyOf(types, capacity);
+        products = Arrays.copyOf(products, capacity);
+        skus = Arrays.copyOf(skus, capacity);
+        countries = Arrays.copyOf(countries, capacity);
+        buyerCurrencies = Arrays.copyOf(buyerCurrencies, capacity);
+        merchantCurrencies = Arrays.copyOf(merchantCurrencies, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        payouts = Arrays.copyOf(payouts, capacity);
+        conversionRates = Arrays.copyOf(conversionRates, capacity);
+        conversionRateBases = Arrays.copyOf(conversionRateBases, capacity);
+        taxAmounts = Arrays.copyOf(taxAmounts, capacity);
+    }
+
+    private static int translate(int[] codes, int code) {
+        return StringDictionary.NULL != code ? codes[code] : StringDictionary.NULL;
+    }
+
+    private static int[] permute(int[] column, int[] permutation) {
+        final int[] out = new int[column.length];
+        for (int i = 0; i < permutation.length; i++) {
+            out[i] = column[permutation[i]];
+        }
+        return out;
+    }
+
+    private static long[] permute(long[] column, int[] permutation) {
+        final long[] out = new long[column.length];
+        for (int i = 0; i < permutation.length; i++) {
+            out[i] = column[permutation[i]];
+        }
+        return out;
+    }
+
+    private static byte[] permute(byte[] column, int[] permutation) {
+        final byte[] out = new byte[column.length];
+        for (int i = 0; i < permutation.length; i++) {
+            out[i] = column[permutation[i]];
+        }
+        return out;
+    }
+
+    private int size;
+    // columns, order id of row i is stored in idBytes[idOffsets[i]..idOffsets[i] + idLengths[i])
+    private int[] idOffsets;
+    private int[] idLengths;
+    private byte[] idBytes;
+    private int idBytesSize;
+    private int[] epochDays;
+    private int[] times;
+    private byte[] types;
+    private int[] products;
+    private int[] skus;
+    private int[] countries;
+    private int[] buyerCurrencies;
+    private int[] merchantCurrencies;
+    private long[] amounts;
+    private long[] payouts;
+    private long[] conversionRates;
+    private int[] conversionRateBases;
+    private long[] taxAmounts;
+    // day slices (set by sortByDate), rows of days[i] are dayOffsets[i]..dayOffsets[i + 1]
+    private int[] days;
+    private int[] dayOffsets;
+    // values of rows which cannot be stored in scaled columns (by row, indexed by decimal column)
+    private HashMap<Integer, BigDecimal[]> decimals = new HashMap<>();
+    // dictionaries
+    private final StringDictionary productDictionary = new StringDictionary();
+    private final StringDictionary skuDictionary = new StringDictionary();
+    private final StringDictionary countryDictionary = new StringDictionary();
+    private final StringDictionary currencyDictionary = new StringDictionary();
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    // maximum days range sorted with buckets regardless of rows count
+    private static final int MAX_DAY_BUCKETS = 64 * 1024;
+    // type column keeps transaction type ordinal and amount fraction flag
+    private static final int TYPE_MASK = 0x3f;
+    private static final int NULL_TYPE = TYPE_MASK;
+    private static final int FRACTIONAL_AMOUNT = 0x40;
+    private static final long NULL_AMOUNT = Long.MIN_VALUE;
+    private static final int NULL_ID = -1;
+    // initial ids arena bytes per row (ids of Play orders are 24 characters long)
+    private static final int ID_BYTES_HINT = 24;
+    // decimal columns
+    private static final int AMOUNT = 0;
+    private static final int PAYOUT = 1;
+    private static final int RATE = 2;
+    private static final int TAX = 3;
+    private static final int DECIMAL_COLUMNS = 4;
+    private static final Transaction.Type[] TYPES = Transaction.Type.values();
+}
@@ -1,10 +1,9 @@
 package com.bytestorm.isp;
 
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.Enumeration;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -12,47 +11,85 @@ import java.util.zip.ZipInputStream;
 
 public class Utils {
     
-    public static String unpack(File zipFile, File outFile) throws IOException {
+    public static ZipEntry getZipEntry(File zipFile) throws IOException {
         try (ZipFile zip = new ZipFile(zipFile)) {
-            Enumeration<? extends ZipEntry> entries = zip.entries();
-            if (!entries.hasMoreElements()) {
-                throw new IOException("Zip with one file expected (empty found)");
-            }
-            ZipEntry entry = entries.nextElement();
-            if (entries.hasMoreElements()) {
-                throw new IOException("Zip with one file expected (more entries found)");
+            return getSingleEntry(zip);
+        }
+    }
+    
+    public static InputStream openZipEntry(File zipFile) throws IOException {
+        return openZipEntry(zipFile, null);
+    }
+
+    /**
+     * Opens stream of zip entry, zip file is closed with the stream.
+     * @param zipFile the zip file
+     * @param name entry name or null if zip contains single entry
+     * @return entry data stream
+     */
+    public static InputStream openZipEntry(File zipFile, String name) throws IOException {
+        final ZipFile zip = new ZipFile(zipFile);
+        try {
+            final ZipEntry entry = null != name ? zip.getEntry(name) : getSingleEntry(zip);
+            if (null == entry) {
+                throw new IOException("Entry " + name + " not found in " + zipFile);
             }
-            try (InputStream in = zip.getInputStream(entry)) {
-                try (OutputStream out = new FileOutputStream(outFile)) {
-                    byte[] buffer = new byte[64 * 1024];
-                    for (int read = 0; (read = in.read(buffer)) > 0; ) {
-                        out.write(buffer, 0, read);
+            return new FilterInputStream(zip.getInputStream(entry)) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        zip.close();
                     }
                 }
-            }
-            return entry.getName();
+            };
+        } catch (IOException ex) {
+            zip.close();
+            throw ex;
         }
     }
     
-    public static String unpack(InputStream zipStream, File outFile) throws IOException {
-        try (ZipInputStream zip = new ZipInputStream(zipStream)) {
-            ZipEntry entry = zip.getNextEntry();
-            String origName;
-            if (null == entry) {
-                throw new IOException("Zip with one file expected (empty found)");
-            }            
-            origName = entry.getName();            
-            try (OutputStream out = new FileOutputStream(outFile)) {
-                byte[] buffer = new byte[64 * 1024];
-                for (int read = 0; (read = zip.read(buffer)) > 0; ) {
-                    out.write(buffer, 0, read);
+    public static InputStream openZipEntry(InputStream zipStream, final String[] outName) throws IOException {
+        final ZipInputStream zip = new ZipInputStream(zipStream);
+        final ZipEntry entry = zip.getNextEntry();
+        if (null == entry) {
+            zip.close();
+            throw new IOException("Zip with one file expected (empty found)");
+        }
+        if (null != outName) {
+            outName[0] = entry.getName();
+        }
+        return new FilterInputStream(zip) {
+            @Override
+            public int read() throws IOException {
+                final int b = super.read();
+                if (b < 0) {
+                    checkLastEntry();
                 }
+                return b;
             }
-            if (null != zip.getNextEntry()) {
-                throw new IOException("Zip with one file expected (more entries found)");
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                final int read = super.read(b, off, len);
+                if (read < 0) {
+                    checkLastEntry();
+                }
+                return read;
             }
-            return origName;
-        }
+            
+            private void checkLastEntry() throws IOException {
+                if (!checked) {
+                    checked = true;
+                    if (null != zip.getNextEntry()) {
+                        throw new IOException("Zip with one file expected (more entries found)");
+                    }
+                }
+            }
+            
+            private boolean checked;
+        };
     }
     
     public static String[] splitFileName(String fileName) {
@@ -63,6 +100,18 @@ public class Utils {
         return new String[] { fileName, "" };
     }
     
+    private static ZipEntry getSingleEntry(ZipFile zip) throws IOException {
+        Enumeration<? extends ZipEntry> entries = zip.entries();
+        if (!entries.hasMoreElements()) {
+            throw new IOException("Zip with one file expected (empty found)");
+        }
+        ZipEntry entry = entries.nextElement();
+        if (entries.hasMoreElements()) {
+            throw new IOException("Zip with one file expected (more entries found)");
+        }
+        return entry;
+    }
+    
     private Utils() {
     }
 }
@@ -0,0 +1,194 @@
+package com.bytestorm.isp;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compact store of charges waiting for sales reports data (summary only mode). All charges are matched with sales and
+ * checked, but only EU charges need VAT data, so only values needed to check matched sale are kept per order (buyer
+ * currency and amount) and conversion rate of collected tax is set for EU charges only. Order ids are kept only in
+ * {@link OrderIndex}. VAT is added to aggregates as soon as sale is matched, so it is never stored.
+ */
+public class VatCharges {
+
+    /**
+     * Adds charge without VAT (non EU currency), which is only checked with matched sale.
+     * @param id order id
+     * @param currency buyer currency
+     * @param amount charged amount
+     */
+    public void addWithoutVat(String id, String currency, BigDecimal amount) {
+        final int row = append(id, currency, amount);
+        rates[row] = 0;
+        bases[row] = NO_VAT;
+    }
+
+    /**
+     * Adds charge in merchant currency (tax is not converted).
+     * @param id order id
+     * @param currency buyer currency
+     * @param amount charged amount
+     */
+    public void add(String id, String currency, BigDecimal amount) {
+        final int row = append(id, currency, amount);
+        rates[row] = 0;
+        bases[row] = NO_CONVERSION;
+    }
+
+    /**
+     * Adds charge in foreign currency.
+     * @param id order id
+     * @param currency buyer currency
+     * @param amount charged amount
+     * @param rate rate used to convert tax (scaled by {@link TransactionTable#RATE_SCALE})
+     * @param base rate base amount
+     */
+    public void add(String id, String currency, BigDecimal amount, long rate, int base) {
+        final int row = append(id, currency, amount);
+        rates[row] = rate;
+        bases[row] = base;
+    }
+
+    /**
+     * Adds charge in foreign currency (e.g. converted with rate from earnings report).
+     * @param id order id
+     * @param currency buyer currency
+     * @param amount charged amount
+     * @param rate rate used to convert tax
+     * @param base rate base amount
+     */
+    public void add(String id, String currency, BigDecimal amount, BigDecimal rate, int base) {
+        final int row = append(id, currency, amount);
+        rates[row] = scale(row, RATE, rate, TransactionTable.RATE_SCALE);
+        bases[row] = base;
+    }
+
+    /**
+     * Appends all charges of other store (e.g. collected from single report).
+     * @param other the charges
+     */
+    public void addAll(VatCharges other) {
+        if (size + other.size > currencies.length) {
+            grow(Math.max(currencies.length * 2, size + other.size));
+        }
+        final int[] currencyCodes = currencyDictionary.encodeAll(other.currencyDictionary);
+        for (int i = 0; i < other.size; i++) {
+            currencies[size + i] = currencyCodes[other.currencies[i]];
+        }
+        System.arraycopy(other.amounts, 0, amounts, size, other.size);
+        System.arraycopy(other.rates, 0, rates, size, other.size);
+        System.arraycopy(other.bases, 0, bases, size, other.size);
+        for (Map.Entry<Integer, BigDecimal[]> e : other.decimals.entrySet()) {
+            decimals.put(size + e.getKey(), e.getValue().clone());
+        }
+        index.putAll(other.index, size);
+        size += other.size;
+    }
+
+    /**
+     * Index of charges order ids (rows are charge indexes).
+     * @return the index
+     */
+    public OrderIndex getIndex() {
+        return index;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String getBuyerCurrency(int row) {
+        return currencyDictionary.decode(currencies[row]);
+    }
+
+    public BigDecimal getAmount(int row) {
+        return toDecimal(row, AMOUNT, amounts[row], TransactionTable.AMOUNT_SCALE);
+    }
+
+    /**
+     * Checks if VAT is collected from charge (see {@link #addWithoutVat(String, String, BigDecimal)}).
+     * @param row charge index
+     * @return true for EU charges
+     */
+    public boolean isVat(int row) {
+        return NO_VAT != bases[row];
+    }
+
+    /**
+     * Adds VAT collected from charge to aggregates (tax is converted with charge rate). Must not be called concurrently
+     * for the same aggregates.
+     * @param row charge index
+     * @param tax tax collected (from matched sale)
+     * @param aggregates the aggregates
+     */
+    public void addVat(int row, BigDecimal tax, TransactionAggregates aggregates) {
+        final String currency = getBuyerCurrency(row);
+        final long taxMoney = Money.of(tax);
+        final long taxConverted = NO_CONVERSION == bases[row] ? taxMoney
+                : Money.convert(taxMoney, rates[row], TransactionTable.RATE_SCALE, bases[row]);
+        if (Money.INEXACT != taxMoney && Money.INEXACT != taxConverted) {
+            aggregates.addVat(currency, taxMoney, taxConverted);
+        } else {
+            aggregates.addVat(currency, tax, NO_CONVERSION == bases[row] ? tax : Money.convert(tax,
+                    toDecimal(row, RATE, rates[row], TransactionTable.RATE_SCALE), bases[row]));
+        }
+    }
+
+    private int append(String id, String currency, BigDecimal amount) {
+        if (size == currencies.length) {
+            grow(size * 2);
+        }
+        final int row = size++;
+        currencies[row] = currencyDictionary.encode(currency);
+        amounts[row] = scale(row, AMOUNT, amount, TransactionTable.AMOUNT_SCALE);
+        index.put(id, row);
+        return row;
+    }
+
+    // scaled value, value which cannot be scaled exactly is kept as decimal (see TransactionTable)
+    private long scale(int row, int column, BigDecimal value, int scale) {
+        final long scaled = Money.toScaled(value, scale);
+        if (Money.INEXACT == scaled) {
+            BigDecimal[] values = decimals.get(row);
+            if (null == values) {
+                values = new BigDecimal[DECIMAL_COLUMNS];
+                decimals.put(row, values);
+            }
+            values[column] = value;
+        }
+        return scaled;
+    }
+
+    private BigDecimal toDecimal(int row, int column, long scaled, int scale) {
+        return Money.INEXACT != scaled ? BigDecimal.valueOf(scaled, scale) : decimals.get(row)[column];
+    }
+
+    private void grow(int capacity) {
+        currencies = Arrays.copyOf(currencies, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        rates = Arrays.copyOf(rates, capacity);
+        bases = Arrays.copyOf(bases, capacity);
+    }
+
+    private int size;
+    private int[] currencies = new int[INITIAL_CAPACITY];
+    private long[] amounts = new long[INITIAL_CAPACITY];
+    private long[] rates = new long[INITIAL_CAPACITY];
+    private int[] bases = new int[INITIAL_CAPACITY];
+    // values of charges which cannot be stored scaled (by row, indexed by decimal column)
+    private final HashMap<Integer, BigDecimal[]> decimals = new HashMap<>();
+    private final StringDictionary currencyDictionary = new StringDictionary();
+    private final OrderIndex index = new OrderIndex(INITIAL_CAPACITY);
+
+    private static final int INITIAL_CAPACITY = 1024;
+    // base of charges in merchant currency
+    private static final int NO_CONVERSION = 0;
+    // base of charges without VAT
+    private static final int NO_VAT = -1;
+    // decimal columns
+    private static final int AMOUNT = 0;
+    private static final int RATE = 1;
+    private static final int DECIMAL_COLUMNS = 2;
+}
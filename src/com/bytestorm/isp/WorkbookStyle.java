@@ -63,6 +63,12 @@ public class WorkbookStyle {
         cell.setCellStyle(fmt);
     }
     
+    public void addMoneyCellWithStyle(Row row, int n, Money.Sum money, CellStyle fmt) {
+        Cell cell = row.createCell(n); 
+        cell.setCellValue(money.toDouble());
+        cell.setCellStyle(fmt);
+    }
+    
     public void addCellWithStyle(Row row, int n, String value, CellStyle fmt) {
         Cell cell = row.createCell(n, Cell.CELL_TYPE_STRING); 
         cell.setCellValue(value);
@@ -91,6 +97,11 @@ public class WorkbookStyle {
         addCellWithStyle(row, lastCellNdx < 0 ? 0 : lastCellNdx, number, fmt);
     }
     
+    public void appendMoneyCellWithStyle(Row row, Money.Sum money, CellStyle fmt) {
+        int lastCellNdx = row.getLastCellNum();
+        addMoneyCellWithStyle(row, lastCellNdx < 0 ? 0 : lastCellNdx, money, fmt);
+    }
+    
     public void appendCellWithStyle(Row row, String value, CellStyle fmt) {
         int lastCellNdx = row.getLastCellNum();
         addCellWithStyle(row, lastCellNdx < 0 ? 0 : lastCellNdx, value, fmt);
@@ -106,6 +117,10 @@ public class WorkbookStyle {
         addCellWithStyle(row, lastCellNdx < 0 ? 0 : lastCellNdx, number, fmt);
     }
     
+    public void appendMoneyCellWithStyle(Row row, Money.Sum money, CellStyleType fmt) {
+        appendMoneyCellWithStyle(row, money, getCellStyle(fmt));
+    }
+    
     public void appendCellWithStyle(Row row, String value, CellStyleType fmt) {
         int lastCellNdx = row.getLastCellNum();
         addCellWithStyle(row, lastCellNdx < 0 ? 0 : lastCellNdx, value, fmt);